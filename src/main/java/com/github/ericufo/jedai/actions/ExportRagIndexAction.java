@@ -0,0 +1,99 @@
+package com.github.ericufo.jedai.actions;
+
+import com.github.ericufo.jedai.rag.impl.IndexBundle;
+import com.github.ericufo.jedai.rag.impl.ProjectIndexService;
+import com.github.ericufo.jedai.rag.impl.SimpleRagIndexer;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Tools菜单Action：导出课程材料索引包
+ * 导出的索引包放到其他机器的slides目录（或随插件发布）后，相同的课件无需重新索引
+ */
+public class ExportRagIndexAction extends AnAction {
+    private static final Logger LOG = Logger.getInstance(ExportRagIndexAction.class);
+
+    public ExportRagIndexAction() {
+        super("Export JEDAI Index Bundle");
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        SimpleRagIndexer indexer = ProjectIndexService.getInstance(project).getIndexer();
+        if (indexer == null) return;
+
+        FileSaverDescriptor descriptor = new FileSaverDescriptor(
+            "Export JEDAI Index Bundle",
+            "Save the course material index so other machines can mount it instead of indexing",
+            "bundle"
+        );
+        VirtualFileWrapper target = FileChooserFactory.getInstance()
+            .createSaveFileDialog(descriptor, project)
+            .save((VirtualFile) null, IndexBundle.FILE_NAME);
+        if (target == null) return;
+        Path targetPath = target.getFile().toPath();
+
+        // 导出需要等待正在进行的索引完成，放到后台执行
+        new Task.Backgroundable(project, "JEDAI: Exporting index bundle", false) {
+            private int documents;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                try {
+                    documents = indexer.exportBundle(targetPath);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            @Override
+            public void onSuccess() {
+                Messages.showInfoMessage(
+                    project,
+                    "Exported " + documents + " documents to\n" + targetPath,
+                    "JEDAI - Index Bundle"
+                );
+            }
+
+            @Override
+            public void onThrowable(@NotNull Throwable error) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                LOG.warn("导出索引包失败", cause);
+                Messages.showErrorDialog(
+                    project,
+                    "Failed to export index bundle: " + cause.getMessage(),
+                    "JEDAI Error"
+                );
+            }
+        }.queue();
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        // 课程材料尚未绑定索引时无可导出的内容
+        Project project = e.getProject();
+        e.getPresentation().setEnabled(project != null
+            && ProjectIndexService.getInstance(project).getIndexer() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
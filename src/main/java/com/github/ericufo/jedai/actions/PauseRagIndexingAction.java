@@ -0,0 +1,47 @@
+package com.github.ericufo.jedai.actions;
+
+import com.github.ericufo.jedai.rag.impl.ProjectIndexService;
+import com.github.ericufo.jedai.rag.impl.SimpleRagIndexer;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tools菜单Action：暂停/继续课程材料索引
+ * 暂停时已进入流水线的文档原地等待，继续后从暂停处接着处理
+ */
+public class PauseRagIndexingAction extends AnAction {
+
+    public PauseRagIndexingAction() {
+        super("Pause JEDAI Indexing");
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        SimpleRagIndexer indexer = getIndexer(e);
+        if (indexer != null && indexer.isIndexing()) {
+            indexer.setPaused(!indexer.isPaused());
+        }
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        SimpleRagIndexer indexer = getIndexer(e);
+        e.getPresentation().setEnabled(indexer != null && indexer.isIndexing());
+        e.getPresentation().setText(indexer != null && indexer.isPaused()
+                ? "Resume JEDAI Indexing" : "Pause JEDAI Indexing");
+    }
+
+    private static SimpleRagIndexer getIndexer(AnActionEvent e) {
+        Project project = e.getProject();
+        return project == null ? null : ProjectIndexService.getInstance(project).getIndexer();
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        // update() only reads two volatile flags
+        return ActionUpdateThread.BGT;
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.ericufo.jedai.rag;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 索引覆盖情况
+ * 索引构建期间，每个文档在完成嵌入并写入存储后即可被检索；
+ * 调用方可据此判断当前检索结果覆盖了哪些课程材料
+ */
+public class IndexCoverage {
+    // 已完成向量索引的文档（文件名）
+    private final Set<String> indexedDocuments;
+    // 已可关键词检索、向量尚在计算中的文档
+    private final Set<String> keywordOnlyDocuments;
+    // 尚未处理的文档
+    private final Set<String> pendingDocuments;
+    private final boolean indexing;
+
+    public IndexCoverage(Set<String> indexedDocuments, Set<String> keywordOnlyDocuments,
+                         Set<String> pendingDocuments, boolean indexing) {
+        this.indexedDocuments = Collections.unmodifiableSet(new TreeSet<>(indexedDocuments));
+        this.keywordOnlyDocuments = Collections.unmodifiableSet(new TreeSet<>(keywordOnlyDocuments));
+        this.pendingDocuments = Collections.unmodifiableSet(new TreeSet<>(pendingDocuments));
+        this.indexing = indexing;
+    }
+
+    public Set<String> getIndexedDocuments() {
+        return indexedDocuments;
+    }
+
+    public Set<String> getKeywordOnlyDocuments() {
+        return keywordOnlyDocuments;
+    }
+
+    public Set<String> getPendingDocuments() {
+        return pendingDocuments;
+    }
+
+    /**
+     * 是否正在构建索引
+     */
+    public boolean isIndexing() {
+        return indexing;
+    }
+
+    /**
+     * 所有已知文档均已完成向量索引
+     */
+    public boolean isComplete() {
+        return keywordOnlyDocuments.isEmpty() && pendingDocuments.isEmpty();
+    }
+
+    public int getTotalDocuments() {
+        return indexedDocuments.size() + keywordOnlyDocuments.size() + pendingDocuments.size();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexCoverage{indexed=" + indexedDocuments.size()
+                + ", keywordOnly=" + keywordOnlyDocuments.size()
+                + ", pending=" + pendingDocuments.size()
+                + ", indexing=" + indexing + "}";
+    }
+}
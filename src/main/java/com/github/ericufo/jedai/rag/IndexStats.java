@@ -1,5 +1,9 @@
 package com.github.ericufo.jedai.rag;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * 索引统计信息
  */
@@ -7,11 +11,33 @@ public class IndexStats {
     private final int totalDocuments;
     private final int totalChunks;
     private final long indexingTimeMs;
+    // 增量索引：本次新增、替换、删除、未变化的文档数
+    private final int documentsAdded;
+    private final int documentsUpdated;
+    private final int documentsRemoved;
+    private final int documentsUnchanged;
+    // 嵌入缓存：命中与未命中的片段数
+    private int embeddingCacheHits;
+    private int embeddingCacheMisses;
+    // 流水线各阶段统计（解析、清洗、切分、嵌入、存储）
+    private List<StageStats> stageStats = new ArrayList<>();
+    // 被取消时尚未处理、留待下次索引的文档数
+    private int documentsSkipped;
+    private boolean cancelled;
 
     public IndexStats(int totalDocuments, int totalChunks, long indexingTimeMs) {
+        this(totalDocuments, totalChunks, indexingTimeMs, totalDocuments, 0, 0, 0);
+    }
+
+    public IndexStats(int totalDocuments, int totalChunks, long indexingTimeMs,
+                      int documentsAdded, int documentsUpdated, int documentsRemoved, int documentsUnchanged) {
         this.totalDocuments = totalDocuments;
         this.totalChunks = totalChunks;
         this.indexingTimeMs = indexingTimeMs;
+        this.documentsAdded = documentsAdded;
+        this.documentsUpdated = documentsUpdated;
+        this.documentsRemoved = documentsRemoved;
+        this.documentsUnchanged = documentsUnchanged;
     }
 
     public int getTotalDocuments() {
@@ -25,5 +51,135 @@ public class IndexStats {
     public long getIndexingTimeMs() {
         return indexingTimeMs;
     }
-}
 
+    public int getDocumentsAdded() {
+        return documentsAdded;
+    }
+
+    public int getDocumentsUpdated() {
+        return documentsUpdated;
+    }
+
+    public int getDocumentsRemoved() {
+        return documentsRemoved;
+    }
+
+    public int getDocumentsUnchanged() {
+        return documentsUnchanged;
+    }
+
+    public int getEmbeddingCacheHits() {
+        return embeddingCacheHits;
+    }
+
+    public int getEmbeddingCacheMisses() {
+        return embeddingCacheMisses;
+    }
+
+    /**
+     * 嵌入缓存命中率，本次未查询缓存时为 0
+     */
+    public double getEmbeddingCacheHitRate() {
+        int lookups = embeddingCacheHits + embeddingCacheMisses;
+        return lookups == 0 ? 0 : (double) embeddingCacheHits / lookups;
+    }
+
+    public void setEmbeddingCacheStats(int hits, int misses) {
+        this.embeddingCacheHits = hits;
+        this.embeddingCacheMisses = misses;
+    }
+
+    public List<StageStats> getStageStats() {
+        return Collections.unmodifiableList(stageStats);
+    }
+
+    public void setStageStats(List<StageStats> stageStats) {
+        this.stageStats = new ArrayList<>(stageStats);
+    }
+
+    public int getDocumentsSkipped() {
+        return documentsSkipped;
+    }
+
+    /**
+     * 本次索引是否被取消；已完成的文档已保存，下次索引从未完成的文档继续
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(int documentsSkipped) {
+        this.cancelled = true;
+        this.documentsSkipped = documentsSkipped;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexStats{documents=" + totalDocuments
+                + ", chunks=" + totalChunks
+                + ", timeMs=" + indexingTimeMs
+                + ", added=" + documentsAdded
+                + ", updated=" + documentsUpdated
+                + ", removed=" + documentsRemoved
+                + ", unchanged=" + documentsUnchanged
+                + (cancelled ? ", cancelled, skipped=" + documentsSkipped : "")
+                + ", cacheHitRate=" + String.format("%.3f", getEmbeddingCacheHitRate())
+                + ", stages=" + stageStats + "}";
+    }
+
+    /**
+     * 单个流水线阶段的统计信息
+     */
+    public static class StageStats {
+        private final String name;
+        private final int threads;
+        private final int itemsProcessed;
+        // 所有工作线程处理条目的累计耗时
+        private final long busyTimeMs;
+        // 阶段输入队列观察到的最大深度
+        private final int maxQueueDepth;
+
+        public StageStats(String name, int threads, int itemsProcessed, long busyTimeMs, int maxQueueDepth) {
+            this.name = name;
+            this.threads = threads;
+            this.itemsProcessed = itemsProcessed;
+            this.busyTimeMs = busyTimeMs;
+            this.maxQueueDepth = maxQueueDepth;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getItemsProcessed() {
+            return itemsProcessed;
+        }
+
+        public long getBusyTimeMs() {
+            return busyTimeMs;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /**
+         * 每个工作线程每秒处理的条目数
+         */
+        public double getThroughput() {
+            return busyTimeMs == 0 ? 0 : itemsProcessed * 1000.0 / busyTimeMs;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{items=" + itemsProcessed
+                    + ", threads=" + threads
+                    + ", busyMs=" + busyTimeMs
+                    + ", maxQueue=" + maxQueueDepth + "}";
+        }
+    }
+}
@@ -8,8 +8,10 @@ import java.util.List;
  */
 public interface RagIndexer {
     /**
-     * 索引课程材料
-     * @param materials 课程材料列表
+     * 索引课程材料（增量）
+     * 只对内容或切分参数发生变化的文档重新切分和嵌入，已删除的文档会从索引中移除，
+     * 未变化的文档保留原有向量
+     * @param materials 当前全部课程材料列表
      * @return 索引统计信息
      */
     IndexStats index(List<CourseMaterial> materials);
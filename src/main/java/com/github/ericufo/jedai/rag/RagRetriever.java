@@ -1,6 +1,12 @@
 package com.github.ericufo.jedai.rag;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * RAG 检索器接口
@@ -21,5 +27,56 @@ public interface RagRetriever {
     default List<RetrievedChunk> search(String query) {
         return search(query, 5);
     }
+
+    /**
+     * 批量检索多个查询
+     * 默认逐个调用 {@link #search(String, int)}，实现类可以一次完成所有查询的嵌入和打分
+     * @param queries 用户查询列表
+     * @param k 每个查询返回的top-k结果数量
+     * @return 与查询顺序一致的检索结果列表
+     */
+    default List<List<RetrievedChunk>> searchBatch(List<String> queries, int k) {
+        List<List<RetrievedChunk>> results = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            results.add(search(query, k));
+        }
+        return results;
+    }
+
+    /**
+     * 异步检索，不阻塞调用线程
+     * 取消返回的future即停止检索；到达截止时间时返回目前为止最好的结果。
+     * 默认实现在给定线程池中调用 {@link #search(String, int)}，没有中间结果：
+     * 截止时间前检索完成则返回其结果，否则返回空列表
+     * @param query 用户查询
+     * @param k 返回的top-k结果数量
+     * @param timeout 截止时间，为null表示不限时
+     * @param executor 执行检索的线程池，检索会阻塞在嵌入计算和磁盘读取上，不应使用CPU计算专用的线程池
+     * @return 检索结果的future
+     */
+    default CompletableFuture<List<RetrievedChunk>> searchAsync(String query, int k, Duration timeout,
+                                                                Executor executor) {
+        CompletableFuture<List<RetrievedChunk>> future = new CompletableFuture<>();
+        CompletableFuture<Void> work = CompletableFuture.runAsync(() -> {
+            try {
+                future.complete(search(query, k));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, executor);
+        // 已完成（取消或超时）时尚未开始的检索不再执行
+        future.whenComplete((chunks, error) -> work.cancel(false));
+        return timeout == null ? future
+                : future.completeOnTimeout(Collections.emptyList(), timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取当前可检索的文档范围
+     * 索引构建期间检索结果只覆盖已处理完成的文档；
+     * 默认实现不跟踪索引进度，返回完整覆盖，调用方因此不会提示索引未完成
+     */
+    default IndexCoverage getCoverage() {
+        return new IndexCoverage(Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), false);
+    }
 }
 
@@ -38,6 +38,10 @@ public class RetrievedChunk {
         return pageRange;
     }
 
+    /**
+     * 相关性分数，仅用于排序
+     * SimpleRagRetriever 返回的是倒数排名融合（RRF）分数，约 0.016–0.033，并非向量相似度
+     */
     public double getScore() {
         return score;
     }
@@ -0,0 +1,394 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary on-disk format of the RAG index, read through a memory mapping.
+ * <p>
+ * Layout (little-endian):
+ * <pre>
+ * header   64 bytes: magic, version, dimension, count, vector/offset/data block offsets, file length, generation
+ * vectors  count * dimension float32, contiguous
+ * offsets  (count + 1) int32, start of each record relative to the data block
+ * data     per record: id, text, metadata entries
+ * </pre>
+ * Opening only validates the header, so it costs the same for ten or ten thousand segments;
+ * vectors and records are decoded on demand from the mapped buffer.
+ */
+public class BinaryIndexFile {
+    private static final long MAGIC = 0x4A45444149564543L; // "JEDAIVEC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_UUID = 6;
+
+    private final MappedByteBuffer buffer;
+    private final Header header;
+
+    private BinaryIndexFile(MappedByteBuffer buffer, Header header) {
+        this.buffer = buffer;
+        this.header = header;
+    }
+
+    /**
+     * Maps an index file and validates its header
+     *
+     * @param path the index file
+     * @return the opened index
+     * @throws IOException if the file cannot be mapped or its header is invalid
+     */
+    public static BinaryIndexFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            if (header == null) {
+                throw new IOException("Invalid or truncated index file: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.fileLength);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new BinaryIndexFile(buffer, header);
+        }
+    }
+
+    /**
+     * Reads only the header of an index file
+     *
+     * @param path the index file
+     * @return the number of stored segments, or -1 if the file is missing or not a valid index
+     */
+    public static int readSegmentCount(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            return header == null ? -1 : header.count;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads only the generation from the header of an index file
+     *
+     * @param path the index file
+     * @return the generation, or 0 if the file is missing or not a valid index
+     */
+    public static long readGeneration(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = Header.read(channel);
+            return header == null ? 0 : header.generation;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public int size() {
+        return header.count;
+    }
+
+    public int dimension() {
+        return header.dimension;
+    }
+
+    /**
+     * Random id written with every save, used to match side files (e.g. the HNSW graph) to this file
+     */
+    public long generation() {
+        return header.generation;
+    }
+
+    /**
+     * Copies the vector of one segment into {@code dst} starting at {@code offset}
+     */
+    public void readVector(int index, float[] dst, int offset) {
+        checkIndex(index);
+        long base = header.vectorsOffset + (long) index * header.dimension * Float.BYTES;
+        buffer.slice((int) base, header.dimension * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer()
+                .get(dst, offset, header.dimension);
+    }
+
+    /**
+     * Copies the whole vector block into {@code dst} starting at {@code offset}
+     */
+    public void readVectors(float[] dst, int offset) {
+        buffer.slice((int) header.vectorsOffset, header.count * header.dimension * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer()
+                .get(dst, offset, header.count * header.dimension);
+    }
+
+    public float[] vector(int index) {
+        float[] vector = new float[header.dimension];
+        readVector(index, vector, 0);
+        return vector;
+    }
+
+    public String id(int index) {
+        int pos = recordStart(index);
+        return readString(pos);
+    }
+
+    public TextSegment segment(int index) {
+        int pos = recordStart(index);
+        pos += Integer.BYTES + buffer.getInt(pos); // skip id
+        String text = readString(pos);
+        pos += Integer.BYTES + buffer.getInt(pos);
+
+        int entries = buffer.getShort(pos) & 0xFFFF;
+        pos += Short.BYTES;
+        Map<String, Object> metadata = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            String key = readString(pos);
+            pos += Integer.BYTES + buffer.getInt(pos);
+            byte type = buffer.get(pos++);
+            switch (type) {
+                case TYPE_INTEGER:
+                    metadata.put(key, buffer.getInt(pos));
+                    pos += Integer.BYTES;
+                    break;
+                case TYPE_LONG:
+                    metadata.put(key, buffer.getLong(pos));
+                    pos += Long.BYTES;
+                    break;
+                case TYPE_FLOAT:
+                    metadata.put(key, buffer.getFloat(pos));
+                    pos += Float.BYTES;
+                    break;
+                case TYPE_DOUBLE:
+                    metadata.put(key, buffer.getDouble(pos));
+                    pos += Double.BYTES;
+                    break;
+                case TYPE_UUID:
+                    metadata.put(key, UUID.fromString(readString(pos)));
+                    pos += Integer.BYTES + buffer.getInt(pos);
+                    break;
+                default:
+                    metadata.put(key, readString(pos));
+                    pos += Integer.BYTES + buffer.getInt(pos);
+                    break;
+            }
+        }
+        return TextSegment.from(text, new Metadata(metadata));
+    }
+
+    /**
+     * Writes an index file atomically (temp file + move)
+     *
+     * @param path the target file
+     * @param ids segment ids
+     * @param vectors segment vectors, all of the same dimension
+     * @param segments segment text and metadata
+     * @param generation id tying side files to this version of the index
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path path, List<String> ids, List<float[]> vectors, List<TextSegment> segments,
+                             long generation) throws IOException {
+        int count = ids.size();
+        if (vectors.size() != count || segments.size() != count) {
+            throw new IllegalArgumentException("ids, vectors and segments must have the same size");
+        }
+        int dimension = count == 0 ? 0 : vectors.get(0).length;
+
+        RecordWriter records = new RecordWriter();
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = records.position();
+            TextSegment segment = segments.get(i);
+            records.putString(ids.get(i));
+            records.putString(segment.text());
+            Map<String, Object> metadata = segment.metadata().toMap();
+            records.putShort(metadata.size());
+            for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+                records.putString(entry.getKey());
+                records.putValue(entry.getValue());
+            }
+        }
+        offsets[count] = records.position();
+
+        long vectorsOffset = HEADER_SIZE;
+        long offsetsOffset = vectorsOffset + (long) count * dimension * Float.BYTES;
+        long dataOffset = offsetsOffset + (long) (count + 1) * Integer.BYTES;
+        long fileLength = dataOffset + records.position();
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IOException("Index too large for a single mapped file: " + fileLength + " bytes");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) fileLength).order(ByteOrder.LITTLE_ENDIAN);
+        out.putLong(MAGIC)
+                .putInt(VERSION)
+                .putInt(dimension)
+                .putInt(count)
+                .putInt(0)
+                .putLong(vectorsOffset)
+                .putLong(offsetsOffset)
+                .putLong(dataOffset)
+                .putLong(fileLength)
+                .putLong(generation);
+        out.position(HEADER_SIZE);
+        for (float[] vector : vectors) {
+            if (vector.length != dimension) {
+                throw new IllegalArgumentException("Inconsistent vector dimension: " + vector.length);
+            }
+            out.asFloatBuffer().put(vector);
+            out.position(out.position() + dimension * Float.BYTES);
+        }
+        for (int offset : offsets) {
+            out.putInt(offset);
+        }
+        out.put(records.buffer.array(), 0, records.position());
+        out.flip();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private int recordStart(int index) {
+        checkIndex(index);
+        return (int) (header.dataOffset + buffer.getInt((int) (header.offsetsOffset + (long) index * Integer.BYTES)));
+    }
+
+    private String readString(int pos) {
+        int length = buffer.getInt(pos);
+        byte[] bytes = new byte[length];
+        buffer.get(pos + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= header.count) {
+            throw new IndexOutOfBoundsException("Segment " + index + " out of " + header.count);
+        }
+    }
+
+    /**
+     * Fixed-size file header
+     */
+    private static class Header {
+        int dimension;
+        int count;
+        long vectorsOffset;
+        long offsetsOffset;
+        long dataOffset;
+        long fileLength;
+        long generation;
+
+        /**
+         * @return the parsed header, or null if the file is not a complete index of this version
+         */
+        static Header read(FileChannel channel) throws IOException {
+            long actualLength = channel.size();
+            if (actualLength < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, bytes.position()) < 0) {
+                    return null;
+                }
+            }
+            bytes.flip();
+            if (bytes.getLong() != MAGIC || bytes.getInt() != VERSION) {
+                return null;
+            }
+            Header header = new Header();
+            header.dimension = bytes.getInt();
+            header.count = bytes.getInt();
+            bytes.getInt(); // flags, reserved
+            header.vectorsOffset = bytes.getLong();
+            header.offsetsOffset = bytes.getLong();
+            header.dataOffset = bytes.getLong();
+            header.fileLength = bytes.getLong();
+            header.generation = bytes.getLong();
+            if (header.count < 0 || header.fileLength != actualLength) {
+                return null;
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Growable little-endian buffer for the record block
+     */
+    private static class RecordWriter {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        int position() {
+            return buffer.position();
+        }
+
+        void putShort(int value) {
+            ensure(Short.BYTES);
+            buffer.putShort((short) value);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        void putValue(Object value) {
+            ensure(1 + Long.BYTES);
+            if (value instanceof Integer) {
+                buffer.put(TYPE_INTEGER).putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.put(TYPE_LONG).putLong((Long) value);
+            } else if (value instanceof Float) {
+                buffer.put(TYPE_FLOAT).putFloat((Float) value);
+            } else if (value instanceof Double) {
+                buffer.put(TYPE_DOUBLE).putDouble((Double) value);
+            } else if (value instanceof UUID) {
+                buffer.put(TYPE_UUID);
+                putString(value.toString());
+            } else {
+                buffer.put(TYPE_STRING);
+                putString(String.valueOf(value));
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}
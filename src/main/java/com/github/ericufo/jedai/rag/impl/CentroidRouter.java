@@ -0,0 +1,271 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Centroids of the rows of a {@link PackedEmbeddingStore} per document and per page, for
+ * coarse-to-fine search.
+ * <p>
+ * Rows are grouped by two metadata keys of their segment, a document key and a page key. Each group
+ * keeps the sum of its unit vectors, so its centroid direction follows adds and removes without
+ * a rebuild, and each page keeps the slots of its rows. {@link #route} scores the documents, then the
+ * pages of the best documents, and returns the slots of the best pages; a search then only scores
+ * those rows. Rows without a document key are never routed to.
+ * <p>
+ * Not thread-safe; the owning store guards it with its lock.
+ */
+public class CentroidRouter {
+    private final String documentKey;
+    private final String pageKey;
+
+    private final Map<String, Integer> documentIds = new HashMap<>();
+    private final List<Group> documents = new ArrayList<>();
+    private final Map<String, Integer> pageIds = new HashMap<>();
+    private final List<Group> pages = new ArrayList<>();
+    // Page of each slot, or -1
+    private int[] pageOfSlot = new int[0];
+
+    /**
+     * @param documentKey metadata key naming the document of a segment
+     * @param pageKey metadata key of the page number of a segment; segments without one form one page
+     */
+    public CentroidRouter(String documentKey, String pageKey) {
+        this.documentKey = documentKey;
+        this.pageKey = pageKey;
+    }
+
+    /**
+     * Deep copy; later changes of either copy do not affect the other
+     */
+    public CentroidRouter copy() {
+        CentroidRouter copy = new CentroidRouter(documentKey, pageKey);
+        copy.documentIds.putAll(documentIds);
+        for (Group document : documents) {
+            copy.documents.add(document.copy());
+        }
+        copy.pageIds.putAll(pageIds);
+        for (Group page : pages) {
+            copy.pages.add(page.copy());
+        }
+        copy.pageOfSlot = pageOfSlot.clone();
+        return copy;
+    }
+
+    public int documentCount() {
+        int count = 0;
+        for (Group document : documents) {
+            if (document.count > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a new row to the centroids of its document and page
+     *
+     * @param slot the slot of the row
+     * @param segment the segment of the row, may be null
+     * @param vector the unit vector of the row
+     */
+    public void add(int slot, TextSegment segment, float[] vector) {
+        if (slot >= pageOfSlot.length) {
+            int old = pageOfSlot.length;
+            pageOfSlot = Arrays.copyOf(pageOfSlot, Math.max(slot + 1, old * 2));
+            Arrays.fill(pageOfSlot, old, pageOfSlot.length, -1);
+        }
+        String document = segment == null ? null : segment.metadata().getString(documentKey);
+        if (document == null) {
+            pageOfSlot[slot] = -1;
+            return;
+        }
+        Integer pageNumber = segment.metadata().getInteger(pageKey);
+        String key = document + '\u0000' + (pageNumber == null ? "" : pageNumber);
+
+        Integer documentId = documentIds.get(document);
+        if (documentId == null) {
+            documentId = documents.size();
+            documentIds.put(document, documentId);
+            documents.add(new Group(-1, vector.length));
+        }
+        Integer pageId = pageIds.get(key);
+        if (pageId == null) {
+            pageId = pages.size();
+            pageIds.put(key, pageId);
+            pages.add(new Group(documentId, vector.length));
+        }
+        documents.get(documentId).add(vector);
+        Group page = pages.get(pageId);
+        page.add(vector);
+        page.addSlot(slot);
+        pageOfSlot[slot] = pageId;
+    }
+
+    /**
+     * Takes a removed row out of its centroids
+     *
+     * @param slot the slot of the row
+     * @param vector the unit vector the row was added with
+     */
+    public void remove(int slot, float[] vector) {
+        int pageId = slot < pageOfSlot.length ? pageOfSlot[slot] : -1;
+        if (pageId < 0) {
+            return;
+        }
+        Group page = pages.get(pageId);
+        page.remove(vector);
+        page.removeSlot(slot);
+        documents.get(page.document).remove(vector);
+        pageOfSlot[slot] = -1;
+    }
+
+    /**
+     * Renumbers the slots after the store dropped its removed rows
+     *
+     * @param remap old slot to new slot, or -1 for removed rows
+     */
+    public void compact(int[] remap) {
+        int[] compacted = new int[pageOfSlot.length];
+        Arrays.fill(compacted, -1);
+        for (int slot = 0; slot < remap.length && slot < pageOfSlot.length; slot++) {
+            if (remap[slot] >= 0) {
+                compacted[remap[slot]] = pageOfSlot[slot];
+            }
+        }
+        pageOfSlot = compacted;
+        for (Group page : pages) {
+            for (int i = 0; i < page.slotCount; i++) {
+                page.slots[i] = remap[page.slots[i]];
+            }
+        }
+    }
+
+    public void clear() {
+        documentIds.clear();
+        documents.clear();
+        pageIds.clear();
+        pages.clear();
+        Arrays.fill(pageOfSlot, -1);
+    }
+
+    /**
+     * Picks the rows worth scoring for a query: the best pages of the best documents by
+     * centroid similarity
+     *
+     * @param query the unit query vector
+     * @param documentCount number of documents to keep
+     * @param pageCount number of pages to keep among those documents
+     * @return the slots of the rows on the kept pages, each page in insertion order
+     */
+    public int[] route(float[] query, int documentCount, int pageCount) {
+        TopKHeap bestDocuments = new TopKHeap(documentCount);
+        for (int id = 0; id < documents.size(); id++) {
+            Group document = documents.get(id);
+            if (document.count > 0) {
+                bestDocuments.offer(id, document.similarity(query));
+            }
+        }
+        boolean[] kept = new boolean[documents.size()];
+        int[] ids = new int[bestDocuments.size()];
+        int n = bestDocuments.drainDescending(ids, new float[ids.length]);
+        for (int i = 0; i < n; i++) {
+            kept[ids[i]] = true;
+        }
+
+        TopKHeap bestPages = new TopKHeap(pageCount);
+        for (int id = 0; id < pages.size(); id++) {
+            Group page = pages.get(id);
+            if (page.slotCount > 0 && kept[page.document]) {
+                bestPages.offer(id, page.similarity(query));
+            }
+        }
+        ids = new int[bestPages.size()];
+        n = bestPages.drainDescending(ids, new float[ids.length]);
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            total += pages.get(ids[i]).slotCount;
+        }
+        int[] slots = new int[total];
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            Group page = pages.get(ids[i]);
+            System.arraycopy(page.slots, 0, slots, next, page.slotCount);
+            next += page.slotCount;
+        }
+        return slots;
+    }
+
+    /**
+     * Vector sum of the rows of one document or page
+     */
+    private static class Group {
+        final int document;
+        final float[] sum;
+        int count;
+        int[] slots = new int[0];
+        int slotCount;
+
+        Group(int document, int dimension) {
+            this.document = document;
+            this.sum = new float[dimension];
+        }
+
+        Group copy() {
+            Group copy = new Group(document, sum.length);
+            System.arraycopy(sum, 0, copy.sum, 0, sum.length);
+            copy.count = count;
+            copy.slots = Arrays.copyOf(slots, slotCount);
+            copy.slotCount = slotCount;
+            return copy;
+        }
+
+        void add(float[] vector) {
+            for (int d = 0; d < sum.length; d++) {
+                sum[d] += vector[d];
+            }
+            count++;
+        }
+
+        void remove(float[] vector) {
+            if (--count == 0) {
+                // Start over from zero rather than from the rounding error of the subtractions
+                Arrays.fill(sum, 0f);
+                return;
+            }
+            for (int d = 0; d < sum.length; d++) {
+                sum[d] -= vector[d];
+            }
+        }
+
+        void addSlot(int slot) {
+            if (slotCount == slots.length) {
+                slots = Arrays.copyOf(slots, Math.max(4, slotCount * 2));
+            }
+            slots[slotCount++] = slot;
+        }
+
+        void removeSlot(int slot) {
+            for (int i = 0; i < slotCount; i++) {
+                if (slots[i] == slot) {
+                    System.arraycopy(slots, i + 1, slots, i, slotCount - i - 1);
+                    slotCount--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Cosine similarity of the centroid with a unit query
+         */
+        float similarity(float[] query) {
+            float norm = (float) Math.sqrt(VectorMath.dot(sum, 0, sum, 0, sum.length));
+            return norm > 0 ? VectorMath.dot(query, 0, sum, 0, sum.length) / norm : 0f;
+        }
+    }
+}
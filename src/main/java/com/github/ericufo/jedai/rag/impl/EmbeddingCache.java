@@ -0,0 +1,243 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent LRU cache from segment text to its embedding.
+ * <p>
+ * Entries are keyed by the first 128 bits of SHA-256(model id, normalized text), so re-chunking
+ * or re-exporting a PDF only embeds text that has not been seen before. The cache holds at most
+ * {@code maxEntries} vectors and evicts the least recently used one.
+ * <p>
+ * File layout (little-endian), entries ordered from least to most recently used:
+ * <pre>
+ * header   32 bytes: magic, version, dimension, count, reserved, model hash
+ * entries  count * (16 byte key + dimension float32)
+ * </pre>
+ */
+public class EmbeddingCache {
+    private static final Logger LOG = Logger.getInstance(EmbeddingCache.class);
+    private static final long MAGIC = 0x4A45444149454D43L; // "JEDAIEMC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int KEY_BYTES = 16;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final String modelId;
+    private final long modelHash;
+    private final int maxEntries;
+    private final LinkedHashMap<Key, float[]> entries;
+    private int dimension;
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    public EmbeddingCache(String modelId, int maxEntries) {
+        this.modelId = modelId;
+        byte[] modelDigest = IndexManifest.sha256().digest(modelId.getBytes(StandardCharsets.UTF_8));
+        this.modelHash = ByteBuffer.wrap(modelDigest).getLong();
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) {
+                return size() > EmbeddingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Loads a cache file; a missing, corrupt or other-model file gives an empty cache
+     *
+     * @param path the cache file
+     * @param modelId identifies the embedding model, entries of other models are ignored
+     * @param maxEntries maximum number of cached vectors
+     * @return the loaded cache
+     */
+    public static EmbeddingCache load(Path path, String modelId, int maxEntries) {
+        EmbeddingCache cache = new EmbeddingCache(modelId, maxEntries);
+        if (!Files.isRegularFile(path)) {
+            return cache;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return cache;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION || buffer.getLong(24) != cache.modelHash) {
+                LOG.info("Ignoring embedding cache written by another version or model");
+                return cache;
+            }
+            int dimension = buffer.getInt(12);
+            int count = buffer.getInt(16);
+            long entryBytes = KEY_BYTES + (long) dimension * Float.BYTES;
+            if (dimension <= 0 || size != HEADER_SIZE + count * entryBytes) {
+                LOG.warn("Embedding cache file is truncated, starting empty");
+                return cache;
+            }
+            cache.dimension = dimension;
+            buffer.position(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(buffer.getLong(), buffer.getLong());
+                float[] vector = new float[dimension];
+                buffer.asFloatBuffer().get(vector);
+                buffer.position(buffer.position() + dimension * Float.BYTES);
+                cache.entries.put(key, vector);
+            }
+            LOG.info("Loaded " + cache.entries.size() + " cached embeddings from " + path);
+        } catch (IOException e) {
+            LOG.warn("Failed to read embedding cache, starting empty", e);
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the cache if it changed since it was loaded or last saved
+     *
+     * @param path the cache file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save(Path path) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        long entryBytes = KEY_BYTES + (long) dimension * Float.BYTES;
+        long length = HEADER_SIZE + entries.size() * entryBytes;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Embedding cache too large: " + length + " bytes");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        out.putLong(MAGIC)
+                .putInt(VERSION)
+                .putInt(dimension)
+                .putInt(entries.size())
+                .putInt(0)
+                .putLong(modelHash);
+        // Iteration runs from least to most recently used, which load() replays in the same order
+        for (Map.Entry<Key, float[]> entry : entries.entrySet()) {
+            out.putLong(entry.getKey().high).putLong(entry.getKey().low);
+            out.asFloatBuffer().put(entry.getValue());
+            out.position(out.position() + dimension * Float.BYTES);
+        }
+        out.flip();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Looks up the embedding of a text and counts the hit or miss
+     *
+     * @param text segment text
+     * @return a copy of the cached vector, or null
+     */
+    public float[] get(String text) {
+        Key key = keyOf(text);
+        synchronized (this) {
+            float[] vector = entries.get(key);
+            if (vector == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return vector.clone();
+        }
+    }
+
+    public void put(String text, float[] vector) {
+        Key key = keyOf(text);
+        synchronized (this) {
+            if (dimension == 0) {
+                dimension = vector.length;
+            } else if (vector.length != dimension) {
+                // Dimension changed under the same model id, nothing cached so far can be trusted
+                entries.clear();
+                dimension = vector.length;
+            }
+            entries.put(key, vector.clone());
+            dirty = true;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Whitespace differences do not change how the tokenizer sees a text, so they are ignored
+     */
+    static String normalize(String text) {
+        String composed = Normalizer.normalize(text, Normalizer.Form.NFC);
+        return WHITESPACE.matcher(composed).replaceAll(" ").trim();
+    }
+
+    private Key keyOf(String text) {
+        String keyText = modelId + '\u0000' + normalize(text);
+        byte[] digest = IndexManifest.sha256().digest(keyText.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        return new Key(buffer.getLong(), buffer.getLong());
+    }
+
+    private static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+}
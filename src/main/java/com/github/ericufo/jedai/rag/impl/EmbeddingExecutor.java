@@ -0,0 +1,170 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import ai.onnxruntime.OrtException;
+import com.intellij.openapi.diagnostic.Logger;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embeds segments with a pool of model replicas.
+ * <p>
+ * Input is cut into fixed-size micro-batches that are fanned out over one minimum-priority worker per
+ * replica; the results are put back together in input order. Every replica has its own ONNX
+ * session (see {@link OnnxEmbeddingReplica}) limited to {@code jedai.rag.embedding.intraOpThreads}
+ * (default 1) threads and embeds its batch on the calling worker thread, so indexing keeps at most
+ * replicas times that many cores busy. Each session holds its own copy of the model weights.
+ * <p>
+ * Every micro-batch holds a permit of an {@link IndexingThrottle}, so while the user is typing
+ * batches run one at a time with pauses in between.
+ * <p>
+ * Configured with {@code jedai.rag.embedding.replicas} (default: half the available processors,
+ * at most 4) and {@code jedai.rag.embedding.batchSize} (default 4).
+ */
+public class EmbeddingExecutor {
+    private static final Logger LOG = Logger.getInstance(EmbeddingExecutor.class);
+    // Identifies the vectors this executor produces, e.g. for caching them
+    public static final String MODEL_ID = "all-minilm-l6-v2-q";
+
+    private final int replicaCount;
+    private final int batchSize;
+    private final BlockingQueue<OnnxEmbeddingReplica> replicas;
+    private final ExecutorService workers;
+    private final IndexingThrottle throttle;
+
+    public EmbeddingExecutor(int replicaCount, int intraOpThreads, int batchSize, IndexingThrottle throttle) {
+        if (replicaCount <= 0 || intraOpThreads <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("replicas, threads and batch size must be positive");
+        }
+        this.replicaCount = replicaCount;
+        this.batchSize = batchSize;
+        this.throttle = throttle;
+        this.replicas = new ArrayBlockingQueue<>(replicaCount);
+        try {
+            byte[] model = OnnxEmbeddingReplica.readModel();
+            for (int i = 0; i < replicaCount; i++) {
+                replicas.add(OnnxEmbeddingReplica.create(model, intraOpThreads));
+            }
+        } catch (IOException | OrtException e) {
+            for (OnnxEmbeddingReplica replica : replicas) {
+                closeQuietly(replica);
+            }
+            throw new IllegalStateException("Failed to create embedding model replicas", e);
+        }
+        this.workers = Executors.newFixedThreadPool(replicaCount, new WorkerThreadFactory());
+        LOG.info("Embedding executor started with " + replicaCount + " replicas of " + intraOpThreads
+                + " threads, batch size " + batchSize);
+    }
+
+    /**
+     * Creates an executor sized from system properties
+     *
+     * @param throttle limits how many batches run at once
+     */
+    public static EmbeddingExecutor fromSystemProperties(IndexingThrottle throttle) {
+        // Every replica is a full session, so memory rather than cores limits the default
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new EmbeddingExecutor(
+                Integer.getInteger("jedai.rag.embedding.replicas", Math.max(1, Math.min(cores / 2, 4))),
+                Integer.getInteger("jedai.rag.embedding.intraOpThreads", 1),
+                Integer.getInteger("jedai.rag.embedding.batchSize", 4),
+                throttle);
+    }
+
+    private static void closeQuietly(OnnxEmbeddingReplica replica) {
+        try {
+            replica.close();
+        } catch (OrtException e) {
+            LOG.warn("Failed to close an embedding model session", e);
+        }
+    }
+
+    public int getReplicaCount() {
+        return replicaCount;
+    }
+
+    /**
+     * Embeds all segments in parallel micro-batches and waits for the result
+     *
+     * @param segments the segments to embed
+     * @return one embedding per segment, in input order
+     */
+    public List<Embedding> embedAll(List<TextSegment> segments) {
+        List<CompletableFuture<List<Embedding>>> batches = new ArrayList<>();
+        for (int from = 0; from < segments.size(); from += batchSize) {
+            List<TextSegment> batch = segments.subList(from, Math.min(from + batchSize, segments.size()));
+            batches.add(CompletableFuture.supplyAsync(() -> embedBatch(batch), workers));
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(segments.size());
+        try {
+            for (CompletableFuture<List<Embedding>> batch : batches) {
+                embeddings.addAll(batch.join());
+            }
+        } catch (CompletionException e) {
+            for (CompletableFuture<List<Embedding>> batch : batches) {
+                batch.cancel(false);
+            }
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+        return embeddings;
+    }
+
+    private List<Embedding> embedBatch(List<TextSegment> batch) {
+        OnnxEmbeddingReplica replica;
+        try {
+            throttle.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the indexing throttle", e);
+        }
+        long start = System.nanoTime();
+        try {
+            try {
+                replica = replicas.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for an embedding model", e);
+            }
+            try {
+                return replica.embedAll(batch).content();
+            } finally {
+                replicas.add(replica);
+            }
+        } finally {
+            throttle.release(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stops the worker threads, batches already running are allowed to finish
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "JEDAI-embedding-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            // Only a hint to the OS scheduler, the throttle is what keeps the editor responsive
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2q.AllMiniLmL6V2QuantizedEmbeddingModel;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Application-level owner of the embedding model.
+ * <p>
+ * Loading the ONNX model takes seconds, so it happens once, on a pooled thread, as soon as the
+ * service is created, followed by one warm-up inference that initializes the runtime session.
+ * Callers get a future and decide whether to wait (indexing) or to do without (an interactive
+ * search that arrives before the model is ready).
+ */
+public class EmbeddingModelService {
+    private static final Logger LOG = Logger.getInstance(EmbeddingModelService.class);
+
+    private final CompletableFuture<EmbeddingModel> model;
+
+    public EmbeddingModelService() {
+        model = CompletableFuture.supplyAsync(EmbeddingModelService::loadModel,
+                AppExecutorUtil.getAppExecutorService());
+        model.whenComplete((loaded, error) -> {
+            if (error != null) {
+                LOG.error("Failed to load embedding model", error);
+            }
+        });
+    }
+
+    public static EmbeddingModelService getInstance() {
+        return ApplicationManager.getApplication().getService(EmbeddingModelService.class);
+    }
+
+    /**
+     * Creates and warms up an instance of AllMiniLmL6V2QuantizedEmbeddingModel
+     *
+     * @return the embedding model instance
+     */
+    private static EmbeddingModel loadModel() {
+        long start = System.currentTimeMillis();
+        ClassLoader cl = EmbeddingModelService.class.getClassLoader();
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        EmbeddingModel embeddingModel;
+        try {
+            Thread.currentThread().setContextClassLoader(cl);
+            embeddingModel = new AllMiniLmL6V2QuantizedEmbeddingModel();
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+        long loaded = System.currentTimeMillis();
+        // The first inference sets up the runtime session, keep that out of the first real query
+        embeddingModel.embed("warm up");
+        LOG.info("Embedding model loaded in " + (loaded - start) + " ms, warmed up in "
+                + (System.currentTimeMillis() - loaded) + " ms");
+        return embeddingModel;
+    }
+
+    /**
+     * @return a future completing with the loaded and warmed-up model
+     */
+    public CompletableFuture<EmbeddingModel> getModel() {
+        return model;
+    }
+
+    /**
+     * @return true once the model can be used without waiting
+     */
+    public boolean isReady() {
+        return model.isDone() && !model.isCompletedExceptionally();
+    }
+
+    /**
+     * Waits for the model; must not be called on the EDT
+     *
+     * @return the loaded model
+     */
+    public EmbeddingModel awaitModel() {
+        if (ApplicationManager.getApplication().isDispatchThread()) {
+            throw new IllegalStateException("Waiting for the embedding model on the EDT");
+        }
+        return model.join();
+    }
+}
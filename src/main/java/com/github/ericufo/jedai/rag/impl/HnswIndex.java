@@ -0,0 +1,698 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hierarchical Navigable Small World graph over the rows of a vector slab.
+ * <p>
+ * Nodes are slab rows of a {@link PackedEmbeddingStore}, which scores them through {@link Vectors};
+ * the graph never sees the vectors themselves. The graph is not thread-safe by itself, the owning
+ * store guards it with its lock. Deleted rows stay in the graph as routing nodes until
+ * {@link #compact(int[], Vectors)} removes them and repairs the neighbourhoods they leave behind.
+ * <p>
+ * The saved graph names the row of every node by its id, so it stays usable after the rows it was
+ * written for were renumbered, partly removed or extended; see {@link PackedEmbeddingStore#load}.
+ */
+public class HnswIndex {
+    private static final long MAGIC = 0x4A45444149484E53L; // "JEDAIHNS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+
+    private static final ThreadLocal<VisitedSet> VISITED = ThreadLocal.withInitial(VisitedSet::new);
+
+    private final Params params;
+    private final double levelMultiplier;
+    private final Random random;
+
+    // links[node][level] = {count, neighbour...}
+    private int[][][] links = new int[0][][];
+    private int nodeCount;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    // Nodes whose neighbour lists a view also references; copied before this graph changes them
+    private final BitSet shared = new BitSet();
+
+    public HnswIndex(Params params) {
+        this.params = params;
+        this.levelMultiplier = 1.0 / Math.log(Math.max(params.m, 2));
+        this.random = new Random(42);
+    }
+
+    /**
+     * Read-only view of the graph as it is now. The view shares the neighbour lists of all nodes;
+     * this graph copies the lists of a node before it next changes them, so later inserts and
+     * compactions never show through.
+     */
+    public HnswIndex view() {
+        HnswIndex view = new HnswIndex(params);
+        view.links = Arrays.copyOf(links, nodeCount);
+        view.nodeCount = nodeCount;
+        view.entryPoint = entryPoint;
+        view.maxLevel = maxLevel;
+        shared.set(0, nodeCount);
+        return view;
+    }
+
+    public Params getParams() {
+        return params;
+    }
+
+    public int size() {
+        return nodeCount;
+    }
+
+    /**
+     * Inserts the next slab row as a new node; nodes must be inserted in row order
+     *
+     * @param vectors scores the rows, including the new one
+     * @return the node id, equal to the row
+     */
+    public int insert(Vectors vectors) {
+        int node = nodeCount;
+        int level = randomLevel();
+        if (node == links.length) {
+            links = Arrays.copyOf(links, Math.max(16, links.length * 2));
+        }
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[1 + maxNeighbours(l)];
+        }
+        nodeCount++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        NodeScorer query = vectors.scorer(node);
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(query, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            CandidateQueue found = searchLayer(query, current, params.efConstruction, l, null);
+            // Taken before selectNeighbours drains the queue
+            current = found.best();
+            int[] neighbours = selectNeighbours(vectors, found, params.m);
+            setLinks(node, l, neighbours, neighbours.length);
+            for (int neighbour : neighbours) {
+                connect(vectors, neighbour, node, l);
+            }
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /**
+     * Approximate k nearest neighbours of a query
+     *
+     * @param query scores nodes against the query
+     * @param deleted rows to leave out of the results (still used for routing), may be null
+     * @param heap receives up to its capacity best (node, score) pairs
+     */
+    public void search(NodeScorer query, int ef, BitSet deleted, TopKHeap heap) {
+        if (entryPoint < 0) {
+            return;
+        }
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(query, current, l);
+        }
+        CandidateQueue found = searchLayer(query, current, Math.max(ef, 1), 0, deleted);
+        for (int i = 0; i < found.size; i++) {
+            heap.offer(found.nodes[i], found.scores[i]);
+        }
+    }
+
+    /**
+     * Drops deleted nodes and renumbers the rest after the slab has been compacted.
+     * Nodes that lose neighbours are reconnected through the neighbours of the removed nodes.
+     *
+     * @param remap old node id to new node id, or -1 for removed nodes
+     * @param vectors scores the rows of the compacted slab
+     */
+    public void compact(int[] remap, Vectors vectors) {
+        int newCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (remap[i] >= 0) {
+                newCount++;
+            }
+        }
+        int[][][] newLinks = new int[Math.max(16, newCount)][][];
+        int newEntry = -1;
+        int newMaxLevel = -1;
+        for (int old = 0; old < nodeCount; old++) {
+            int node = remap[old];
+            if (node < 0) {
+                continue;
+            }
+            // Every level gets a new list below, the lists of the old node may be shared with a view
+            int[][] nodeLinks = links[old].clone();
+            for (int l = 0; l < nodeLinks.length; l++) {
+                int[] list = nodeLinks[l];
+                int count = list[0];
+                boolean lostNeighbour = false;
+                // Candidates: surviving neighbours plus the surviving neighbours of removed ones
+                int[] candidates = new int[count * (1 + maxNeighbours(l))];
+                int n = 0;
+                for (int i = 1; i <= count; i++) {
+                    int neighbour = list[i];
+                    if (remap[neighbour] >= 0) {
+                        candidates[n++] = remap[neighbour];
+                    } else {
+                        lostNeighbour = true;
+                        int[] second = l < links[neighbour].length ? links[neighbour][l] : null;
+                        if (second != null) {
+                            for (int j = 1; j <= second[0]; j++) {
+                                int candidate = remap[second[j]];
+                                if (candidate >= 0 && candidate != node) {
+                                    candidates[n++] = candidate;
+                                }
+                            }
+                        }
+                    }
+                }
+                int[] kept = lostNeighbour
+                        ? pruneCandidates(vectors, node, candidates, n, maxNeighbours(l))
+                        : Arrays.copyOf(candidates, n);
+                int[] newList = new int[1 + maxNeighbours(l)];
+                newList[0] = kept.length;
+                System.arraycopy(kept, 0, newList, 1, kept.length);
+                nodeLinks[l] = newList;
+            }
+            newLinks[node] = nodeLinks;
+            if (nodeLinks.length - 1 > newMaxLevel) {
+                newMaxLevel = nodeLinks.length - 1;
+                newEntry = node;
+            }
+        }
+        links = newLinks;
+        nodeCount = newCount;
+        entryPoint = newEntry;
+        maxLevel = newMaxLevel;
+        shared.clear();
+    }
+
+    /**
+     * Writes the graph next to the vector files
+     *
+     * @param nodeIds id of the row of each node, null for removed rows
+     */
+    public void write(Path path, String[] nodeIds) throws IOException {
+        byte[][] encodedIds = new byte[nodeCount][];
+        long bytes = HEADER_SIZE;
+        for (int node = 0; node < nodeCount; node++) {
+            encodedIds[node] = nodeIds[node] == null ? null : nodeIds[node].getBytes(StandardCharsets.UTF_8);
+            bytes += Integer.BYTES + (encodedIds[node] == null ? 0 : encodedIds[node].length);
+            bytes += Integer.BYTES;
+            for (int[] list : links[node]) {
+                bytes += (long) (1 + list[0]) * Integer.BYTES;
+            }
+        }
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("HNSW graph too large: " + bytes + " bytes");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.putLong(MAGIC)
+                .putInt(VERSION)
+                .putInt(params.m)
+                .putInt(params.efConstruction)
+                .putInt(nodeCount)
+                .putInt(entryPoint)
+                .putInt(maxLevel)
+                .putLong(bytes);
+        for (int node = 0; node < nodeCount; node++) {
+            if (encodedIds[node] == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(encodedIds[node].length).put(encodedIds[node]);
+            }
+            out.putInt(links[node].length);
+            for (int[] list : links[node]) {
+                out.putInt(list[0]);
+                for (int i = 1; i <= list[0]; i++) {
+                    out.putInt(list[i]);
+                }
+            }
+        }
+        out.flip();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a persisted graph if it was built with the given M
+     *
+     * @return the graph with the row ids of its nodes, or null if the file is missing, unreadable
+     *         or built with different parameters
+     */
+    public static Persisted read(Path path, Params params) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getLong() != MAGIC || in.getInt() != VERSION || in.getInt() != params.m) {
+                return null;
+            }
+            in.getInt(); // efConstruction only affects future inserts
+            int nodes = in.getInt();
+            int entry = in.getInt();
+            int levels = in.getInt();
+            if (in.getLong() != length) {
+                return null;
+            }
+            HnswIndex index = new HnswIndex(params);
+            String[] nodeIds = new String[nodes];
+            index.links = new int[Math.max(16, nodes)][][];
+            for (int node = 0; node < nodes; node++) {
+                int idLength = in.getInt();
+                if (idLength >= 0) {
+                    byte[] id = new byte[idLength];
+                    in.get(id);
+                    nodeIds[node] = new String(id, StandardCharsets.UTF_8);
+                }
+                int nodeLevels = in.getInt();
+                int[][] nodeLinks = new int[nodeLevels][];
+                for (int l = 0; l < nodeLevels; l++) {
+                    int count = in.getInt();
+                    int[] list = new int[1 + index.maxNeighbours(l)];
+                    list[0] = count;
+                    for (int i = 1; i <= count; i++) {
+                        int neighbour = in.getInt();
+                        if (neighbour < 0 || neighbour >= nodes) {
+                            return null;
+                        }
+                        list[i] = neighbour;
+                    }
+                    nodeLinks[l] = list;
+                }
+                index.links[node] = nodeLinks;
+            }
+            index.nodeCount = nodes;
+            index.entryPoint = entry;
+            index.maxLevel = levels;
+            return new Persisted(index, nodeIds);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private int maxNeighbours(int level) {
+        return level == 0 ? params.m * 2 : params.m;
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private int greedyClosest(NodeScorer query, int start, int level) {
+        int current = start;
+        float currentScore = query.score(current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] list = links[current][level];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbour = list[i];
+                float score = query.score(neighbour);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = neighbour;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one layer. Deleted nodes are traversed but never returned.
+     *
+     * @return up to ef best nodes, unordered
+     */
+    private CandidateQueue searchLayer(NodeScorer query, int start, int ef, int level, BitSet deleted) {
+        VisitedSet visited = VISITED.get();
+        visited.reset(nodeCount);
+        CandidateQueue candidates = new CandidateQueue(ef * 2, true);
+        CandidateQueue results = new CandidateQueue(ef + 1, false);
+
+        float startScore = query.score(start);
+        visited.add(start);
+        candidates.push(start, startScore);
+        if (deleted == null || !deleted.get(start)) {
+            results.push(start, startScore);
+        }
+
+        while (candidates.size > 0) {
+            float candidateScore = candidates.topScore();
+            if (results.size >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int[] list = links[candidate][level];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbour = list[i];
+                if (!visited.add(neighbour)) {
+                    continue;
+                }
+                float score = query.score(neighbour);
+                if (results.size < ef || score > results.topScore()) {
+                    candidates.push(neighbour, score);
+                    if (deleted == null || !deleted.get(neighbour)) {
+                        results.push(neighbour, score);
+                        if (results.size > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbour selection heuristic: keep a candidate only if it is closer to the new node
+     * than to every neighbour already kept, which preserves links across clusters.
+     */
+    private int[] selectNeighbours(Vectors vectors, CandidateQueue found, int m) {
+        int n = found.size;
+        int[] order = new int[n];
+        float[] scores = new float[n];
+        // drain the min-heap so the best candidates come first
+        for (int i = n - 1; i >= 0; i--) {
+            scores[i] = found.topScore();
+            order[i] = found.pop();
+        }
+        return heuristic(vectors, order, scores, n, m);
+    }
+
+    private int[] pruneCandidates(Vectors vectors, int node, int[] candidates, int n, int m) {
+        NodeScorer fromNode = vectors.scorer(node);
+        int unique = 0;
+        int[] distinct = new int[n];
+        float[] scores = new float[n];
+        outer:
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < unique; j++) {
+                if (distinct[j] == candidates[i]) {
+                    continue outer;
+                }
+            }
+            distinct[unique] = candidates[i];
+            scores[unique] = fromNode.score(candidates[i]);
+            unique++;
+        }
+        sortDescending(distinct, scores, unique);
+        return heuristic(vectors, distinct, scores, unique, m);
+    }
+
+    private int[] heuristic(Vectors vectors, int[] order, float[] scores, int n, int m) {
+        int[] selected = new int[Math.min(n, m)];
+        int count = 0;
+        for (int i = 0; i < n && count < selected.length; i++) {
+            int candidate = order[i];
+            boolean keep = true;
+            NodeScorer fromCandidate = count > 0 ? vectors.scorer(candidate) : null;
+            for (int j = 0; j < count; j++) {
+                float between = fromCandidate.score(selected[j]);
+                if (between > scores[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            }
+        }
+        // Fill remaining slots with the closest discarded candidates to keep the graph well connected
+        for (int i = 0; i < n && count < selected.length; i++) {
+            boolean present = false;
+            for (int j = 0; j < count; j++) {
+                if (selected[j] == order[i]) {
+                    present = true;
+                    break;
+                }
+            }
+            if (!present) {
+                selected[count++] = order[i];
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    private void connect(Vectors vectors, int from, int to, int level) {
+        if (shared.get(from)) {
+            int[][] levels = links[from].clone();
+            for (int l = 0; l < levels.length; l++) {
+                levels[l] = levels[l].clone();
+            }
+            links[from] = levels;
+            shared.clear(from);
+        }
+        int[] list = links[from][level];
+        int max = maxNeighbours(level);
+        if (list[0] < max) {
+            list[++list[0]] = to;
+            return;
+        }
+        int[] candidates = new int[max + 1];
+        System.arraycopy(list, 1, candidates, 0, max);
+        candidates[max] = to;
+        float[] scores = new float[max + 1];
+        NodeScorer fromNode = vectors.scorer(from);
+        for (int i = 0; i <= max; i++) {
+            scores[i] = fromNode.score(candidates[i]);
+        }
+        sortDescending(candidates, scores, max + 1);
+        int[] kept = heuristic(vectors, candidates, scores, max + 1, max);
+        setLinks(from, level, kept, kept.length);
+    }
+
+    private void setLinks(int node, int level, int[] neighbours, int count) {
+        int[] list = links[node][level];
+        list[0] = count;
+        System.arraycopy(neighbours, 0, list, 1, count);
+    }
+
+    private static void sortDescending(int[] nodes, float[] scores, int n) {
+        for (int i = 1; i < n; i++) {
+            int node = nodes[i];
+            float score = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] < score) {
+                nodes[j + 1] = nodes[j];
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            scores[j + 1] = score;
+        }
+    }
+
+    /**
+     * Scores one query, or one node, against the nodes of the graph; higher is closer
+     */
+    public interface NodeScorer {
+        float score(int node);
+    }
+
+    /**
+     * Access to the vectors behind the nodes, provided by the owning store
+     */
+    public interface Vectors {
+        /**
+         * Creates a scorer against one node, reused for the many comparisons an insert or repair
+         * makes with the same node
+         */
+        NodeScorer scorer(int node);
+    }
+
+    /**
+     * A graph read from disk, with the id of the row each node stood for when it was written
+     */
+    public static class Persisted {
+        public final HnswIndex graph;
+        // null for rows that were already removed
+        public final String[] nodeIds;
+
+        Persisted(HnswIndex graph, String[] nodeIds) {
+            this.graph = graph;
+            this.nodeIds = nodeIds;
+        }
+    }
+
+    /**
+     * Graph construction and search parameters, overridable with system properties
+     * {@code jedai.rag.hnsw.m}, {@code jedai.rag.hnsw.efConstruction} and {@code jedai.rag.hnsw.efSearch}
+     */
+    public static class Params {
+        public final int m;
+        public final int efConstruction;
+        public final int efSearch;
+
+        public Params(int m, int efConstruction, int efSearch) {
+            this.m = Math.max(2, m);
+            this.efConstruction = Math.max(this.m, efConstruction);
+            this.efSearch = Math.max(1, efSearch);
+        }
+
+        public static Params fromSystemProperties() {
+            return new Params(
+                    Integer.getInteger("jedai.rag.hnsw.m", 16),
+                    Integer.getInteger("jedai.rag.hnsw.efConstruction", 100),
+                    Integer.getInteger("jedai.rag.hnsw.efSearch", 64));
+        }
+    }
+
+    /**
+     * Epoch-stamped visited marks, reused across searches on the same thread
+     */
+    private static class VisitedSet {
+        private int[] marks = new int[0];
+        private int epoch;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[Math.max(capacity, marks.length * 2)];
+                epoch = 0;
+            }
+            epoch++;
+            if (epoch == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean add(int node) {
+            if (marks[node] == epoch) {
+                return false;
+            }
+            marks[node] = epoch;
+            return true;
+        }
+    }
+
+    /**
+     * Growable binary heap of (node, score); max-heap for candidates, min-heap for results
+     */
+    private static class CandidateQueue {
+        int[] nodes;
+        float[] scores;
+        int size;
+        private final boolean max;
+
+        CandidateQueue(int capacity, boolean max) {
+            this.nodes = new int[Math.max(capacity, 4)];
+            this.scores = new float[Math.max(capacity, 4)];
+            this.max = max;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        int best() {
+            if (max) {
+                return nodes[0];
+            }
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            return nodes[best];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            nodes[i] = node;
+            scores[i] = score;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(scores[i], scores[parent])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            if (size > 0) {
+                nodes[0] = nodes[size];
+                scores[0] = scores[size];
+                int i = 0;
+                while (true) {
+                    int left = 2 * i + 1;
+                    if (left >= size) {
+                        break;
+                    }
+                    int child = left;
+                    if (left + 1 < size && before(scores[left + 1], scores[left])) {
+                        child = left + 1;
+                    }
+                    if (!before(scores[child], scores[i])) {
+                        break;
+                    }
+                    swap(i, child);
+                    i = child;
+                }
+            }
+            return top;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        private void swap(int a, int b) {
+            int node = nodes[a];
+            nodes[a] = nodes[b];
+            nodes[b] = node;
+            float score = scores[a];
+            scores[a] = scores[b];
+            scores[b] = score;
+        }
+    }
+}
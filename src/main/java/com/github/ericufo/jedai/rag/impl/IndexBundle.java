@@ -0,0 +1,260 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManagerCore;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.extensions.PluginId;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A finished index packed into one file, so that bundled slides need not be indexed on every
+ * machine.
+ * <p>
+ * The bundle is a zip archive with three entries:
+ * <pre>
+ * bundle.json    format version, model id, vector dimension
+ * manifest.json  the index manifest, with file names instead of absolute paths
+ * index.bin      vectors, segment text and metadata in the {@link BinaryIndexFile} format
+ * </pre>
+ * Documents are matched to local materials by content hash, so a bundle stays valid wherever
+ * the slides are copied to. Opening a bundle extracts it to a temporary directory that
+ * {@link #close()} removes.
+ */
+public class IndexBundle implements Closeable {
+    private static final Logger LOG = Logger.getInstance(IndexBundle.class);
+    private static final Gson GSON = new Gson();
+    public static final String FILE_NAME = "jedai-index.bundle";
+    private static final String PLUGIN_ID = "com.github.ericufo.jedai";
+    private static final int FORMAT_VERSION = 1;
+    private static final String INFO_ENTRY = "bundle.json";
+    private static final String MANIFEST_ENTRY = "manifest.json";
+    private static final String INDEX_ENTRY = "index.bin";
+
+    private final Path bundlePath;
+    private final Path directory;
+    private final Info info;
+    private final BinaryIndexFile index;
+    private final Map<String, IndexManifest.DocumentEntry> documentsByHash = new HashMap<>();
+    private final Map<String, Integer> rowsById = new HashMap<>();
+
+    private IndexBundle(Path bundlePath, Path directory, Info info, IndexManifest manifest, BinaryIndexFile index) {
+        this.bundlePath = bundlePath;
+        this.directory = directory;
+        this.info = info;
+        this.index = index;
+        for (IndexManifest.DocumentEntry entry : manifest.getDocuments()) {
+            documentsByHash.put(entry.getContentHash(), entry);
+        }
+        for (int i = 0; i < index.size(); i++) {
+            rowsById.put(index.id(i), i);
+        }
+    }
+
+    /**
+     * Looks for a bundle next to the course materials, then in the plugin installation
+     *
+     * @param materialDir the course material directory
+     * @return the bundle file, or null if there is none
+     */
+    public static Path find(File materialDir) {
+        Path local = materialDir.toPath().resolve(FILE_NAME);
+        if (Files.isRegularFile(local)) {
+            return local;
+        }
+        IdeaPluginDescriptor plugin = PluginManagerCore.getPlugin(PluginId.getId(PLUGIN_ID));
+        if (plugin != null && plugin.getPluginPath() != null) {
+            Path shipped = plugin.getPluginPath().resolve("index").resolve(FILE_NAME);
+            if (Files.isRegularFile(shipped)) {
+                return shipped;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Packs a saved index into a bundle
+     *
+     * @param target the bundle file to write
+     * @param indexFile the saved index file
+     * @param manifest the manifest describing the saved index
+     * @param dimension the vector dimension of the saved index
+     * @return the number of documents in the bundle
+     * @throws IOException if a file cannot be read or written
+     */
+    public static int write(Path target, Path indexFile, IndexManifest manifest, int dimension) throws IOException {
+        Info info = new Info();
+        info.formatVersion = FORMAT_VERSION;
+        info.modelId = EmbeddingExecutor.MODEL_ID;
+        info.dimension = dimension;
+        info.documents = manifest.getDocuments().size();
+        info.segments = BinaryIndexFile.readSegmentCount(indexFile);
+
+        // Absolute paths mean nothing on another machine
+        IndexManifest portable = new IndexManifest();
+        for (IndexManifest.DocumentEntry entry : manifest.getDocuments()) {
+            portable.put(new IndexManifest.DocumentEntry(entry.getFileName(), entry.getFileName(),
+                    entry.getContentHash(), entry.getChunkSize(), entry.getChunkOverlap(),
+                    entry.getTextVersion(), entry.getChunkIds()));
+        }
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Path manifestFile = Files.createTempFile("jedai-bundle", ".json");
+        try {
+            portable.save(manifestFile);
+            try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(tmp))) {
+                zip.putNextEntry(new ZipEntry(INFO_ENTRY));
+                zip.write(GSON.toJson(info).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                Files.copy(manifestFile, zip);
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry(INDEX_ENTRY));
+                Files.copy(indexFile, zip);
+                zip.closeEntry();
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(manifestFile);
+            Files.deleteIfExists(tmp);
+        }
+        return info.documents;
+    }
+
+    /**
+     * Extracts and validates a bundle
+     *
+     * @param bundlePath the bundle file
+     * @return the opened bundle, or null if it was built for another model or format
+     * @throws IOException if the bundle cannot be read
+     */
+    public static IndexBundle open(Path bundlePath) throws IOException {
+        Path directory = Files.createTempDirectory("jedai-bundle");
+        boolean opened = false;
+        try {
+            try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(bundlePath))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (name.equals(INFO_ENTRY) || name.equals(MANIFEST_ENTRY) || name.equals(INDEX_ENTRY)) {
+                        Files.copy(zip, directory.resolve(name));
+                    }
+                }
+            }
+            Path infoFile = directory.resolve(INFO_ENTRY);
+            if (!Files.isRegularFile(infoFile) || !Files.isRegularFile(directory.resolve(INDEX_ENTRY))) {
+                throw new IOException("Incomplete index bundle: " + bundlePath);
+            }
+            Info info;
+            try {
+                info = GSON.fromJson(Files.readString(infoFile), Info.class);
+            } catch (JsonParseException e) {
+                throw new IOException("Invalid index bundle: " + bundlePath, e);
+            }
+            if (info == null || info.formatVersion != FORMAT_VERSION
+                    || !EmbeddingExecutor.MODEL_ID.equals(info.modelId)) {
+                LOG.info("Ignoring index bundle built for another format or model: " + bundlePath);
+                return null;
+            }
+            IndexManifest manifest = IndexManifest.load(directory.resolve(MANIFEST_ENTRY));
+            BinaryIndexFile index = BinaryIndexFile.open(directory.resolve(INDEX_ENTRY));
+            opened = true;
+            return new IndexBundle(bundlePath, directory, info, manifest, index);
+        } finally {
+            if (!opened) {
+                deleteDirectory(directory);
+            }
+        }
+    }
+
+    /**
+     * Finds the bundled version of a document
+     *
+     * @param contentHash content hash of the local file
+     * @return the bundle's manifest entry, or null if the bundle does not cover this content
+     */
+    public IndexManifest.DocumentEntry findDocument(String contentHash) {
+        return documentsByHash.get(contentHash);
+    }
+
+    /**
+     * @param id segment id
+     * @return the row of the segment in the bundled index, or -1
+     */
+    public int row(String id) {
+        Integer row = rowsById.get(id);
+        return row == null ? -1 : row;
+    }
+
+    public BinaryIndexFile getIndex() {
+        return index;
+    }
+
+    public int getDimension() {
+        return info.dimension;
+    }
+
+    public Path getPath() {
+        return bundlePath;
+    }
+
+    public int getDocumentCount() {
+        return documentsByHash.size();
+    }
+
+    @Override
+    public void close() {
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(Path directory) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            return;
+        }
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // A still mapped file cannot be deleted on Windows, leave it to the OS
+                file.toFile().deleteOnExit();
+            }
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            directory.toFile().deleteOnExit();
+        }
+    }
+
+    private static class Info {
+        int formatVersion;
+        String modelId;
+        int dimension;
+        int documents;
+        int segments;
+    }
+}
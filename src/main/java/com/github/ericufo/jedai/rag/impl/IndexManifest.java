@@ -0,0 +1,356 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Per-document manifest of the RAG index.
+ * Records, for every indexed material, the content hash, the chunker parameters
+ * and the ids of the segments stored for it, so that re-indexing only touches
+ * documents whose bytes or chunking actually changed.
+ * <p>
+ * Saving appends only the entries changed since the manifest was loaded to a journal next to
+ * the file, one JSON line each; once the journal holds more lines than there are documents it
+ * is folded into a rewrite of the whole file. Loading replays the journal over the file.
+ */
+public class IndexManifest {
+    private static final Logger LOG = Logger.getInstance(IndexManifest.class);
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Gson JOURNAL_GSON = new Gson();
+    static final String JOURNAL_SUFFIX = ".journal";
+    // A journal shorter than this is never folded, however few documents there are
+    private static final int MIN_JOURNAL_TO_FOLD = 16;
+
+    private Map<String, DocumentEntry> documents = new LinkedHashMap<>();
+    // Identifies the last index bundle mounted into this index, null if none was
+    private String bundleStamp;
+    // Paths put or removed since the last load or save
+    private transient Set<String> changedPaths = new LinkedHashSet<>();
+    // Set when the file cannot be brought up to date by appending to the journal
+    private transient boolean rewrite = true;
+    private transient int journalLines;
+
+    /**
+     * Loads the manifest from disk, returning an empty manifest if it is missing or unreadable
+     *
+     * @param path the manifest file path
+     * @return the loaded manifest
+     */
+    public static IndexManifest load(Path path) {
+        if (Files.exists(path)) {
+            try {
+                IndexManifest manifest = GSON.fromJson(Files.readString(path), IndexManifest.class);
+                if (manifest != null && manifest.documents != null) {
+                    manifest.replayJournal(journalPath(path));
+                    return manifest;
+                }
+            } catch (IOException | JsonParseException e) {
+                LOG.warn("Failed to read index manifest, treating all materials as new", e);
+            }
+        }
+        return new IndexManifest();
+    }
+
+    /**
+     * Saves the changes since the manifest was loaded or last saved; a crash while writing leaves
+     * the previous state in place
+     *
+     * @param path the manifest file path
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path) throws IOException {
+        Path journal = journalPath(path);
+        if (rewrite || !Files.exists(path)
+                || journalLines + changedPaths.size() > Math.max(documents.size(), MIN_JOURNAL_TO_FOLD)) {
+            writeFile(path);
+            // Replaying a journal over the file that already contains it changes nothing
+            Files.deleteIfExists(journal);
+            journalLines = 0;
+        } else if (!changedPaths.isEmpty()) {
+            StringBuilder lines = new StringBuilder();
+            for (String changed : changedPaths) {
+                lines.append(JOURNAL_GSON.toJson(new JournalRecord(changed, documents.get(changed)))).append('\n');
+            }
+            Files.writeString(journal, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            journalLines += changedPaths.size();
+        }
+        changedPaths.clear();
+        rewrite = false;
+    }
+
+    /**
+     * Deletes the manifest file and its journal
+     */
+    static void delete(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(journalPath(path));
+    }
+
+    static Path journalPath(Path path) {
+        return path.resolveSibling(path.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    private void writeFile(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, GSON.toJson(this));
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void replayJournal(Path journal) throws IOException {
+        changedPaths = new LinkedHashSet<>();
+        rewrite = false;
+        journalLines = 0;
+        if (!Files.exists(journal)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JournalRecord record;
+                try {
+                    record = JOURNAL_GSON.fromJson(line, JournalRecord.class);
+                } catch (JsonParseException e) {
+                    record = null;
+                }
+                if (record == null || record.path == null) {
+                    // Torn by a crash while appending; the next save rewrites the file without it
+                    LOG.warn("Ignoring the unreadable tail of the index manifest journal");
+                    rewrite = true;
+                    return;
+                }
+                if (record.entry == null) {
+                    documents.remove(record.path);
+                } else {
+                    documents.put(record.path, record.entry);
+                }
+                journalLines++;
+            }
+        }
+    }
+
+    public DocumentEntry get(String path) {
+        return documents.get(path);
+    }
+
+    public void put(DocumentEntry entry) {
+        documents.put(entry.getPath(), entry);
+        changedPaths.add(entry.getPath());
+    }
+
+    public DocumentEntry remove(String path) {
+        changedPaths.add(path);
+        return documents.remove(path);
+    }
+
+    public Collection<DocumentEntry> getDocuments() {
+        return Collections.unmodifiableCollection(documents.values());
+    }
+
+    public boolean isEmpty() {
+        return documents.isEmpty();
+    }
+
+    public void clear() {
+        documents.clear();
+        bundleStamp = null;
+        rewrite = true;
+    }
+
+    public String getBundleStamp() {
+        return bundleStamp;
+    }
+
+    /**
+     * Records the bundle that was mounted; the journal only holds documents, so the next save
+     * rewrites the file if the stamp changed
+     */
+    public void setBundleStamp(String bundleStamp) {
+        if (!Objects.equals(this.bundleStamp, bundleStamp)) {
+            this.bundleStamp = bundleStamp;
+            rewrite = true;
+        }
+    }
+
+    /**
+     * @return the ids of the segments of all documents
+     */
+    public Set<String> getAllChunkIds() {
+        Set<String> ids = new HashSet<>();
+        for (DocumentEntry entry : documents.values()) {
+            ids.addAll(entry.getChunkIds());
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of segments recorded across all documents
+     */
+    public int getTotalChunks() {
+        int total = 0;
+        for (DocumentEntry entry : documents.values()) {
+            total += entry.getChunkIds().size();
+        }
+        return total;
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file's content
+     *
+     * @param file the file to hash
+     * @return the hex encoded digest
+     * @throws IOException if the file cannot be read
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Derives a stable segment id from the document path, its hash and the chunk position.
+     * Identical files at different paths get different ids, so replacing or removing one of
+     * them leaves the segments of the other alone.
+     *
+     * @param documentKey the document path, or another key no other document uses
+     * @param contentHash the document content hash
+     * @param chunkIndex the position of the chunk inside the document
+     * @return the segment id
+     */
+    public static String chunkId(String documentKey, String contentHash, int chunkIndex) {
+        String name = documentKey + "\u0000" + contentHash + "#" + chunkIndex;
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One line of the journal; a null entry removes the document
+     */
+    private static class JournalRecord {
+        private final String path;
+        private final DocumentEntry entry;
+
+        JournalRecord(String path, DocumentEntry entry) {
+            this.path = path;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Manifest entry for a single course material
+     */
+    public static class DocumentEntry {
+        private final String path;
+        private final String fileName;
+        private final String contentHash;
+        private final int chunkSize;
+        private final int chunkOverlap;
+        // Version of the text cleaning rules, 0 for entries written before cleaning existed
+        private final int textVersion;
+        private final List<String> chunkIds;
+
+        public DocumentEntry(String path, String fileName, String contentHash,
+                             int chunkSize, int chunkOverlap, int textVersion, List<String> chunkIds) {
+            this.path = path;
+            this.fileName = fileName;
+            this.contentHash = contentHash;
+            this.chunkSize = chunkSize;
+            this.chunkOverlap = chunkOverlap;
+            this.textVersion = textVersion;
+            this.chunkIds = new ArrayList<>(chunkIds);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkOverlap() {
+            return chunkOverlap;
+        }
+
+        public int getTextVersion() {
+            return textVersion;
+        }
+
+        public List<String> getChunkIds() {
+            return chunkIds == null ? Collections.emptyList() : Collections.unmodifiableList(chunkIds);
+        }
+
+        /**
+         * Checks whether this entry is still valid for the given content, chunker settings and cleaning rules
+         */
+        public boolean matches(String contentHash, int chunkSize, int chunkOverlap, int textVersion) {
+            return this.contentHash.equals(contentHash)
+                    && this.chunkSize == chunkSize
+                    && this.chunkOverlap == chunkOverlap
+                    && this.textVersion == textVersion;
+        }
+    }
+}
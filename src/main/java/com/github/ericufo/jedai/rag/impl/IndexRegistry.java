@@ -0,0 +1,228 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Application-wide registry of open indexes, keyed by the content hash of their material set.
+ * <p>
+ * Projects that use the same slides get the same {@link SimpleRagIndexer}, so its index is
+ * mapped and held in memory once. Every project holds a reference and the indexer is dropped
+ * with the last one. Index files live under the IDE system directory, one directory per key;
+ * beyond {@code jedai.rag.index.keep} (default 8) the least recently used directories are
+ * deleted.
+ */
+public final class IndexRegistry {
+    private static final Logger LOG = Logger.getInstance(IndexRegistry.class);
+    private static final int KEEP_DIRECTORIES = Integer.getInteger("jedai.rag.index.keep", 8);
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private IndexRegistry() {
+    }
+
+    private static Path getRootDirectory() {
+        return Paths.get(PathManager.getSystemPath(), "jedai");
+    }
+
+    /**
+     * @param key the material set key
+     * @return the directory holding the index of that material set
+     */
+    public static Path getIndexDirectory(String key) {
+        return getRootDirectory().resolve("indexes").resolve(key);
+    }
+
+    /**
+     * @return the directory of the caches shared by all indexes
+     */
+    public static Path getCacheDirectory() {
+        return getRootDirectory().resolve("cache");
+    }
+
+    /**
+     * Computes the key of a material set; the order and location of the files do not matter
+     *
+     * @param contentHashes content hashes of all materials
+     * @return the key
+     */
+    public static String materialSetKey(Collection<String> contentHashes) {
+        String joined = String.join("\n", new TreeSet<>(contentHashes));
+        byte[] digest = IndexManifest.sha256().digest(joined.getBytes(StandardCharsets.UTF_8));
+        return IndexManifest.toHex(digest).substring(0, 16);
+    }
+
+    /**
+     * Takes a reference to the indexer of a material set, opening it if no project uses it yet.
+     * A material set without an index on disk starts from a copy of the seed index, so only the
+     * documents that differ need to be indexed.
+     *
+     * @param key the material set key
+     * @param seedDirectory index directory to start a new index from, may be null
+     * @return the shared indexer
+     */
+    public static synchronized SimpleRagIndexer acquire(String key, Path seedDirectory) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            Path directory = getIndexDirectory(key);
+            if (!Files.isDirectory(directory) && seedDirectory != null) {
+                seed(directory, seedDirectory);
+            }
+            touch(directory);
+            entry = new Entry(new SimpleRagIndexer(directory));
+            ENTRIES.put(key, entry);
+            LOG.info("Opened shared index " + key);
+            prune();
+        }
+        entry.references++;
+        return entry.indexer;
+    }
+
+    /**
+     * Gives back a reference taken by {@link #acquire}
+     *
+     * @param key the material set key
+     */
+    public static synchronized void release(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            throw new IllegalStateException("Index " + key + " is not open");
+        }
+        if (--entry.references == 0) {
+            ENTRIES.remove(key);
+            LOG.info("Closed shared index " + key);
+        }
+    }
+
+    /**
+     * Content hashes referred to by any index on disk, used to prune the shared caches
+     *
+     * @return the content hashes
+     */
+    static synchronized Set<String> liveContentHashes() {
+        Set<String> hashes = new HashSet<>();
+        for (Path directory : listIndexDirectories()) {
+            IndexManifest manifest = IndexManifest.load(directory.resolve(SimpleRagIndexer.MANIFEST_FILE_NAME));
+            for (IndexManifest.DocumentEntry entry : manifest.getDocuments()) {
+                hashes.add(entry.getContentHash());
+            }
+        }
+        return hashes;
+    }
+
+    private static void seed(Path directory, Path seedDirectory) {
+        try {
+            SimpleRagIndexer open = null;
+            for (Entry entry : ENTRIES.values()) {
+                if (entry.indexer.getDirectory().equals(seedDirectory)) {
+                    open = entry.indexer;
+                }
+            }
+            // An open index may be saving right now, let it finish first
+            if (open != null) {
+                open.copyIndexFilesTo(directory);
+            } else {
+                SimpleRagIndexer.copyIndexFiles(seedDirectory, directory);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to seed index from " + seedDirectory + ", building it from scratch", e);
+        }
+    }
+
+    private static void touch(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            Files.setLastModifiedTime(directory, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOG.warn("Failed to create index directory " + directory, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used index directories that no project has open
+     */
+    private static void prune() {
+        List<Path> directories = listIndexDirectories();
+        if (directories.size() <= KEEP_DIRECTORIES) {
+            return;
+        }
+        directories.sort(Comparator.comparing(IndexRegistry::lastModified).reversed());
+        for (Path directory : directories.subList(KEEP_DIRECTORIES, directories.size())) {
+            // An acquired index is in use, whatever its age
+            if (ENTRIES.containsKey(directory.getFileName().toString())) {
+                continue;
+            }
+            try {
+                deleteRecursively(directory);
+                LOG.info("Deleted unused index " + directory.getFileName());
+            } catch (IOException | UncheckedIOException e) {
+                LOG.warn("Failed to delete unused index " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes an index directory with its segment subdirectory, children before their parents
+     */
+    private static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static List<Path> listIndexDirectories() {
+        List<Path> directories = new ArrayList<>();
+        Path root = getRootDirectory().resolve("indexes");
+        if (!Files.isDirectory(root)) {
+            return directories;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : stream) {
+                directories.add(directory);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to list index directories", e);
+        }
+        return directories;
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static class Entry {
+        final SimpleRagIndexer indexer;
+        int references;
+
+        Entry(SimpleRagIndexer indexer) {
+            this.indexer = indexer;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable, versioned view of the vector index that searches run against.
+ * <p>
+ * The indexer never changes a published snapshot; it takes the next one as a read-only view of its
+ * working store and swaps it in. The reference count starts at one for the publisher; every search
+ * holds a reference while it runs. Once the snapshot has been replaced and the last search has let
+ * go, its store is dropped.
+ * <p>
+ * The keyword index is not part of the snapshot: it takes segments as soon as they are parsed so
+ * that keyword search covers documents still waiting for their embeddings, see {@link com.github.ericufo.jedai.rag.IndexCoverage}.
+ */
+public class IndexSnapshot {
+    private static final Logger LOG = Logger.getInstance(IndexSnapshot.class);
+
+    private final long version;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile PackedEmbeddingStore store;
+
+    IndexSnapshot(long version, PackedEmbeddingStore store) {
+        this.version = version;
+        this.store = store;
+    }
+
+    /**
+     * Version number, increasing with every publish
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The store of this snapshot; must not be modified and only used while a reference is held
+     */
+    public PackedEmbeddingStore getStore() {
+        PackedEmbeddingStore current = store;
+        if (current == null) {
+            throw new IllegalStateException("Index snapshot " + version + " has already been released");
+        }
+        return current;
+    }
+
+    /**
+     * Takes a reference unless the snapshot has already been released
+     *
+     * @return true if a reference was taken
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a reference taken by {@link SimpleRagIndexer#acquireSnapshot()} or held by the publisher
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            store = null;
+            LOG.debug("Released index snapshot " + version);
+        } else if (count < 0) {
+            throw new IllegalStateException("Index snapshot " + version + " released too often");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.ide.IdeEventQueue;
+import com.intellij.openapi.application.ApplicationManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides how much CPU indexing may use, based on whether the user is working in the IDE.
+ * <p>
+ * CPU-heavy steps (parsing a PDF, embedding a micro-batch) each hold a permit while they run.
+ * Once the IDE has seen no input for {@code jedai.rag.throttle.idleMs} (default 3000) all
+ * permits are available. While the user types only one step runs at a time, and after each
+ * one the next is held back so that indexing keeps to {@code jedai.rag.throttle.activeBudget}
+ * (default 0.25) of one core. A step that is already running is never interrupted; steps are
+ * short, so the throttle reacts within one micro-batch.
+ * <p>
+ * One permit stands for one core only because every step is single-threaded: parsing runs on
+ * its pipeline worker, and each embedding session is limited to
+ * {@code jedai.rag.embedding.intraOpThreads} (default 1) threads, so ONNX runs the batch on the
+ * calling worker instead of fanning out over its own pool. All indexing threads also run at
+ * {@link Thread#MIN_PRIORITY}, so the scheduler prefers the UI thread whenever both are runnable.
+ */
+public class IndexingThrottle {
+    private static final long IDLE_AFTER_MS = Long.getLong("jedai.rag.throttle.idleMs", 3000);
+    private static final double ACTIVE_BUDGET =
+            Double.parseDouble(System.getProperty("jedai.rag.throttle.activeBudget", "0.25"));
+    // Longest pause after one step, so a slow batch does not stall indexing for long
+    private static final long MAX_PAUSE_NANOS = 2_000_000_000L;
+    private static final long POLL_MS = 50;
+
+    private final int maxPermits;
+    private final LongSupplier idleTimeMillis;
+    private int running;
+    // While the user is active no step may start before this System.nanoTime() value
+    private long notBeforeNanos;
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public IndexingThrottle(int maxPermits, LongSupplier idleTimeMillis) {
+        if (maxPermits <= 0) {
+            throw new IllegalArgumentException("maxPermits must be positive");
+        }
+        this.maxPermits = maxPermits;
+        this.idleTimeMillis = idleTimeMillis;
+    }
+
+    /**
+     * Creates a throttle that follows the input activity of the IDE; without a running
+     * application (e.g. in a plain JVM) the user always counts as idle
+     *
+     * @param maxPermits steps allowed to run at once while the user is idle
+     * @return the throttle
+     */
+    public static IndexingThrottle forIde(int maxPermits) {
+        return new IndexingThrottle(maxPermits, () -> ApplicationManager.getApplication() == null
+                ? Long.MAX_VALUE : IdeEventQueue.getInstance().getIdleTime());
+    }
+
+    /**
+     * @return true if the user has given input within the idle threshold
+     */
+    public boolean isUserActive() {
+        return idleTimeMillis.getAsLong() < IDLE_AFTER_MS;
+    }
+
+    /**
+     * Waits until another CPU-heavy step may start and takes a permit for it
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            while (true) {
+                boolean active = isUserActive();
+                long now = System.nanoTime();
+                // While the user is active a single step at a time, i.e. at most one core
+                if (running < (active ? 1 : maxPermits) && (!active || now - notBeforeNanos >= 0)) {
+                    break;
+                }
+                long pauseMs = active ? Math.max(1, (notBeforeNanos - now) / 1_000_000) : POLL_MS;
+                // Poll as well: the user may stop or start typing while we wait
+                wait(Math.min(pauseMs, POLL_MS));
+            }
+            running++;
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the permit of a finished step and yields before the next one
+     *
+     * @param busyNanos how long the step ran
+     */
+    public void release(long busyNanos) {
+        synchronized (this) {
+            running--;
+            if (isUserActive()) {
+                long pause = (long) (busyNanos * (1 - ACTIVE_BUDGET) / ACTIVE_BUDGET);
+                notBeforeNanos = System.nanoTime() + Math.min(pause, MAX_PAUSE_NANOS);
+            }
+            notifyAll();
+        }
+        Thread.yield();
+    }
+
+    /**
+     * Total time steps spent waiting for a permit
+     */
+    public long getWaitMillis() {
+        return waitNanos.get() / 1_000_000;
+    }
+}
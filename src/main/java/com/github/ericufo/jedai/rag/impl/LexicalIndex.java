@@ -0,0 +1,469 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over segment text with BM25 scoring.
+ * <p>
+ * The tokenizer is Java-aware: identifiers are kept whole ({@code nullpointerexception}), split at
+ * camel-case boundaries ({@code null}, {@code pointer}, {@code exception}) and annotations keep an
+ * {@code @}-prefixed form, so exact API names that embed poorly still match.
+ * Postings are append-only byte arrays of varint-encoded (doc gap, term frequency) pairs; removed
+ * segments are tombstoned and their statistics subtracted right away. Once tombstones make up
+ * more than half of the documents, the postings are rewritten without them and the documents
+ * renumbered, so re-indexing the same material does not grow the index or the per-query work.
+ */
+public class LexicalIndex {
+    private static final Pattern TOKEN = Pattern.compile("@?[A-Za-z_$][A-Za-z0-9_$]*|\\d+");
+    private static final Pattern CAMEL_BOUNDARY = Pattern.compile("(?<=[a-z0-9])(?=[A-Z])|(?<=[A-Z])(?=[A-Z][a-z])|_");
+    // Question filler that would otherwise match nearly every chunk
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "by", "can", "do", "does", "for", "how", "i",
+            "in", "is", "it", "of", "on", "or", "the", "this", "to", "what", "when", "where", "which",
+            "why", "with");
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    // Compact once this fraction of all documents is tombstoned, and not for a handful of removals
+    private static final double MAX_DELETED_FRACTION = 0.5;
+    private static final int MIN_DELETED_TO_COMPACT = 256;
+    private static final ThreadLocal<ScoreBuffer> SCORES = ThreadLocal.withInitial(ScoreBuffer::new);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final Map<String, Integer> docById = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+
+    // per term
+    private Postings[] postings = new Postings[0];
+    private int[] documentFrequency = new int[0];
+
+    // per document
+    private String[] ids = new String[0];
+    private TextSegment[] segments = new TextSegment[0];
+    private int[] lengths = new int[0];
+    private int[][] docTerms = new int[0][];
+    private int docCount;
+    private int liveDocs;
+    private long totalLength;
+
+    /**
+     * Indexes a segment, replacing any earlier segment with the same id
+     */
+    public void add(String id, TextSegment segment) {
+        List<String> tokens = tokenize(segment.text());
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokens) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeInternal(id);
+            int doc = docCount++;
+            if (doc == ids.length) {
+                int capacity = Math.max(256, ids.length * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                segments = Arrays.copyOf(segments, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                docTerms = Arrays.copyOf(docTerms, capacity);
+            }
+            ids[doc] = id;
+            segments[doc] = segment;
+            lengths[doc] = tokens.size();
+            docById.put(id, doc);
+            liveDocs++;
+            totalLength += tokens.size();
+
+            int[] terms = new int[frequencies.size()];
+            int i = 0;
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                int term = termId(entry.getKey());
+                postings[term].append(doc, entry.getValue());
+                documentFrequency[term]++;
+                terms[i++] = term;
+            }
+            docTerms[doc] = terms;
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            removeInternal(id);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAll(List<String> idsToRemove) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idsToRemove) {
+                removeInternal(id);
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            termIds.clear();
+            docById.clear();
+            deleted.clear();
+            postings = new Postings[0];
+            documentFrequency = new int[0];
+            ids = new String[0];
+            segments = new TextSegment[0];
+            lengths = new int[0];
+            docTerms = new int[0][];
+            docCount = 0;
+            liveDocs = 0;
+            totalLength = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 top-k search
+     *
+     * @param query free text query
+     * @param k number of results
+     * @return hits ordered by descending BM25 score, with how many of the query terms each matched
+     */
+    public List<Hit> search(String query, int k) {
+        Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+        lock.readLock().lock();
+        try {
+            if (liveDocs == 0 || k <= 0 || queryTerms.isEmpty()) {
+                return new ArrayList<>();
+            }
+            float averageLength = (float) totalLength / liveDocs;
+            ScoreBuffer buffer = SCORES.get();
+            buffer.reset(docCount);
+            for (String queryTerm : queryTerms) {
+                Integer term = termIds.get(queryTerm);
+                if (term == null || documentFrequency[term] == 0) {
+                    continue;
+                }
+                int df = documentFrequency[term];
+                float idf = (float) Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+                byte[] bytes = postings[term].bytes;
+                int end = postings[term].length;
+                int pos = 0;
+                int doc = 0;
+                while (pos < end) {
+                    int gap = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = bytes[pos++];
+                        gap |= (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    int tf = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = bytes[pos++];
+                        tf |= (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    doc += gap;
+                    if (deleted.get(doc)) {
+                        continue;
+                    }
+                    float norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                    buffer.add(doc, idf * tf * (K1 + 1) / (tf + norm));
+                }
+            }
+            TopKHeap heap = new TopKHeap(k);
+            for (int i = 0; i < buffer.touchedCount; i++) {
+                int doc = buffer.touched[i];
+                heap.offer(doc, buffer.scores[doc]);
+            }
+            int[] docs = new int[heap.size()];
+            float[] best = new float[heap.size()];
+            int n = heap.drainDescending(docs, best);
+            List<Hit> hits = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                hits.add(new Hit(ids[docs[i]], segments[docs[i]], best[i], buffer.matched[docs[i]],
+                        queryTerms.size()));
+            }
+            buffer.clear();
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text into lower-cased identifier, camel-case part and number tokens, dropping stop words
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(text);
+        while (matcher.find()) {
+            String raw = matcher.group();
+            boolean annotation = raw.charAt(0) == '@';
+            String word = annotation ? raw.substring(1) : raw;
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (!annotation && STOP_WORDS.contains(lower)) {
+                continue;
+            }
+            tokens.add(lower);
+            if (annotation) {
+                tokens.add(raw.toLowerCase(Locale.ROOT));
+            }
+            String[] parts = CAMEL_BOUNDARY.split(word);
+            if (parts.length > 1) {
+                for (String part : parts) {
+                    if (part.length() > 1) {
+                        tokens.add(part.toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private int termId(String term) {
+        Integer id = termIds.get(term);
+        if (id != null) {
+            return id;
+        }
+        int next = termIds.size();
+        termIds.put(term, next);
+        if (next == postings.length) {
+            int capacity = Math.max(1024, postings.length * 2);
+            postings = Arrays.copyOf(postings, capacity);
+            documentFrequency = Arrays.copyOf(documentFrequency, capacity);
+        }
+        postings[next] = new Postings();
+        return next;
+    }
+
+    private void removeInternal(String id) {
+        Integer doc = docById.remove(id);
+        if (doc == null) {
+            return;
+        }
+        deleted.set(doc);
+        for (int term : docTerms[doc]) {
+            documentFrequency[term]--;
+        }
+        docTerms[doc] = null;
+        segments[doc] = null;
+        totalLength -= lengths[doc];
+        liveDocs--;
+    }
+
+    /**
+     * Drops tombstoned documents from the postings and renumbers the rest once they are
+     * a large enough share of all documents
+     */
+    private void compactIfNeeded() {
+        int deletedCount = docCount - liveDocs;
+        if (deletedCount < MIN_DELETED_TO_COMPACT || deletedCount <= docCount * MAX_DELETED_FRACTION) {
+            return;
+        }
+        int[] remap = new int[docCount];
+        int next = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (deleted.get(doc)) {
+                remap[doc] = -1;
+                continue;
+            }
+            remap[doc] = next;
+            ids[next] = ids[doc];
+            segments[next] = segments[doc];
+            lengths[next] = lengths[doc];
+            docTerms[next] = docTerms[doc];
+            docById.put(ids[next], next);
+            next++;
+        }
+        Arrays.fill(ids, next, docCount, null);
+        Arrays.fill(segments, next, docCount, null);
+        Arrays.fill(docTerms, next, docCount, null);
+        for (int term = 0; term < termIds.size(); term++) {
+            // Renumbering keeps the order of the documents, so the gaps stay positive
+            postings[term] = postings[term].compact(remap);
+        }
+        docCount = next;
+        deleted.clear();
+    }
+
+    /**
+     * Lexical search result
+     */
+    public static class Hit {
+        private final String id;
+        private final TextSegment segment;
+        private final float score;
+        private final int matchedTerms;
+        private final int queryTerms;
+
+        Hit(String id, TextSegment segment, float score, int matchedTerms, int queryTerms) {
+            this.id = id;
+            this.segment = segment;
+            this.score = score;
+            this.matchedTerms = matchedTerms;
+            this.queryTerms = queryTerms;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public TextSegment getSegment() {
+            return segment;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        /**
+         * Number of distinct query terms found in the segment
+         */
+        public int getMatchedTerms() {
+            return matchedTerms;
+        }
+
+        /**
+         * Number of distinct terms of the query, stop words excluded
+         */
+        public int getQueryTerms() {
+            return queryTerms;
+        }
+    }
+
+    /**
+     * Delta + varint encoded postings list of one term
+     */
+    private static class Postings {
+        byte[] bytes = new byte[8];
+        int length;
+        int lastDoc;
+
+        void append(int doc, int tf) {
+            writeVarint(doc - lastDoc);
+            writeVarint(tf);
+            lastDoc = doc;
+        }
+
+        /**
+         * Copies the postings of the documents that remain, under their new numbers
+         *
+         * @param remap old document number to new number, or -1 for removed documents
+         */
+        Postings compact(int[] remap) {
+            Postings compacted = new Postings();
+            int pos = 0;
+            int doc = 0;
+            while (pos < length) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                int tf = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[pos++];
+                    tf |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                doc += gap;
+                if (remap[doc] >= 0) {
+                    compacted.append(remap[doc], tf);
+                }
+            }
+            return compacted;
+        }
+
+        private void writeVarint(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+
+    /**
+     * Per-thread score and matched-term accumulator of {@link #search}; only the touched entries
+     * are reset after a query
+     */
+    private static class ScoreBuffer {
+        float[] scores = new float[0];
+        // Query terms matched per document; non-zero exactly for the touched documents
+        int[] matched = new int[0];
+        int[] touched = new int[0];
+        int touchedCount;
+
+        void reset(int docCount) {
+            // Normally a no-op, unless the last query on this thread failed half way
+            clear();
+            if (scores.length < docCount) {
+                scores = new float[Math.max(docCount, scores.length * 2)];
+                matched = new int[scores.length];
+            }
+        }
+
+        void add(int doc, float score) {
+            if (matched[doc]++ == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, Math.max(64, touchedCount * 2));
+                }
+                touched[touchedCount++] = doc;
+            }
+            scores[doc] += score;
+        }
+
+        void clear() {
+            for (int i = 0; i < touchedCount; i++) {
+                scores[touched[i]] = 0f;
+                matched[touched[i]] = 0;
+            }
+            touchedCount = 0;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.github.ericufo.jedai.rag.CourseMaterial;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the course material directory and re-indexes the documents that change in it.
+ * <p>
+ * Copying a PDF produces a burst of VFS events, so changed paths are collected until no event
+ * has arrived for the debounce window. The update then only hashes and re-indexes those paths.
+ * While another indexing run is in progress the update waits for another window.
+ */
+public class MaterialDirectoryWatcher implements Disposable {
+    private static final Logger LOG = Logger.getInstance(MaterialDirectoryWatcher.class);
+    private static final long DEBOUNCE_MS = Long.getLong("jedai.rag.watch.debounceMs", 2000);
+
+    private final Project project;
+    private File directory;
+    private LocalFileSystem.WatchRequest watchRequest;
+    // Absolute paths of materials changed since the last update, guarded by this
+    private final Set<String> changedPaths = new HashSet<>();
+    private ScheduledFuture<?> pendingUpdate;
+    private boolean disposed;
+
+    public MaterialDirectoryWatcher(Project project) {
+        this.project = project;
+    }
+
+    public static MaterialDirectoryWatcher getInstance(Project project) {
+        return project.getService(MaterialDirectoryWatcher.class);
+    }
+
+    /**
+     * Starts watching a material directory; only files directly inside it are materials
+     *
+     * @param dir the material directory, it does not have to exist yet
+     */
+    public synchronized void watch(File dir) {
+        if (disposed || watchRequest != null) {
+            return;
+        }
+        directory = dir.getAbsoluteFile();
+        watchRequest = LocalFileSystem.getInstance().addRootToWatch(directory.getPath(), false);
+        // VFS only reports changes below directories whose children it has loaded
+        VirtualFile virtualDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(directory);
+        if (virtualDir != null) {
+            virtualDir.getChildren();
+        }
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onEvents(events);
+            }
+        });
+        LOG.info("Watching course materials in " + directory);
+    }
+
+    private void onEvents(List<? extends VFileEvent> events) {
+        Set<String> affected = new HashSet<>();
+        for (VFileEvent event : events) {
+            addIfMaterial(event.getPath(), affected);
+            // A rename or move also changes the document at the old path
+            if (event instanceof VFileMoveEvent) {
+                addIfMaterial(((VFileMoveEvent) event).getOldPath(), affected);
+            } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                addIfMaterial(((VFilePropertyChangeEvent) event).getOldPath(), affected);
+            }
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (disposed) {
+                return;
+            }
+            changedPaths.addAll(affected);
+            scheduleUpdate();
+        }
+    }
+
+    private void addIfMaterial(String path, Set<String> affected) {
+        File file = new File(path).getAbsoluteFile();
+        if (directory.equals(file.getParentFile()) && RagIndexerStartupActivity.materialType(file.getName()) != null) {
+            affected.add(file.getPath());
+        }
+    }
+
+    /**
+     * Restarts the debounce window; must hold the lock
+     */
+    private void scheduleUpdate() {
+        if (pendingUpdate != null) {
+            pendingUpdate.cancel(false);
+        }
+        pendingUpdate = AppExecutorUtil.getAppScheduledExecutorService()
+                .schedule(this::runUpdate, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void runUpdate() {
+        Set<String> affected;
+        synchronized (this) {
+            if (disposed || project.isDisposed()) {
+                return;
+            }
+            SimpleRagIndexer indexer = ProjectIndexService.getInstance(project).getIndexer();
+            if (indexer != null && indexer.isIndexing()) {
+                scheduleUpdate();
+                return;
+            }
+            affected = new HashSet<>(changedPaths);
+            changedPaths.clear();
+            pendingUpdate = null;
+        }
+        List<CourseMaterial> materials = RagIndexerStartupActivity.collectFromDir(directory);
+        LOG.info("Course materials changed, updating " + affected.size() + " documents");
+        new RagIndexingTask(project, materials, affected, null).queue();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        if (pendingUpdate != null) {
+            pendingUpdate.cancel(false);
+            pendingUpdate = null;
+        }
+        if (watchRequest != null) {
+            LocalFileSystem.getInstance().removeWatchedRoot(watchRequest);
+            watchRequest = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.model.embedding.onnx.AbstractInProcessEmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.OnnxBertBiEncoder;
+import dev.langchain4j.model.embedding.onnx.PoolingMode;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2q.AllMiniLmL6V2QuantizedEmbeddingModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The all-MiniLM-L6-v2 (quantized) model on an ONNX session of its own.
+ * <p>
+ * {@link AllMiniLmL6V2QuantizedEmbeddingModel} keeps its encoder in a static field, so every
+ * instance of it runs on the same session, whose intra-op thread pool spans all cores. A replica
+ * opens its own session from the same model file and tokenizer, limited to a given number of
+ * intra-op threads, and embeds on the calling thread. Its vectors match those of the shared model.
+ */
+class OnnxEmbeddingReplica extends AbstractInProcessEmbeddingModel implements AutoCloseable {
+    private static final String MODEL_RESOURCE = "all-minilm-l6-v2-q.onnx";
+    private static final String TOKENIZER_RESOURCE = "all-minilm-l6-v2-q-tokenizer.json";
+    private static final int DIMENSION = 384;
+
+    private final OrtSession session;
+    private final OnnxBertBiEncoder encoder;
+
+    private OnnxEmbeddingReplica(OrtSession session, OnnxBertBiEncoder encoder) {
+        super(Runnable::run);
+        this.session = session;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Reads the model file bundled with langchain4j, to be shared by the sessions of all replicas
+     *
+     * @return the ONNX model
+     * @throws IOException if the model cannot be read
+     */
+    static byte[] readModel() throws IOException {
+        try (InputStream in = openResource(MODEL_RESOURCE)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Opens a session on the model
+     *
+     * @param model the ONNX model, see {@link #readModel()}
+     * @param intraOpThreads threads one inference may use
+     * @return the replica; close it to free the session
+     */
+    static OnnxEmbeddingReplica create(byte[] model, int intraOpThreads) throws OrtException, IOException {
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        OrtSession session;
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setIntraOpNumThreads(intraOpThreads);
+            options.setInterOpNumThreads(1);
+            session = environment.createSession(model, options);
+        }
+        try (InputStream tokenizer = openResource(TOKENIZER_RESOURCE)) {
+            return new OnnxEmbeddingReplica(session,
+                    new OnnxBertBiEncoder(environment, session, tokenizer, PoolingMode.MEAN));
+        } catch (IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    private static InputStream openResource(String name) throws IOException {
+        InputStream in = AllMiniLmL6V2QuantizedEmbeddingModel.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Embedding model resource not found: " + name);
+        }
+        return in;
+    }
+
+    @Override
+    protected OnnxBertBiEncoder model() {
+        return encoder;
+    }
+
+    @Override
+    protected Integer knownDimension() {
+        return DIMENSION;
+    }
+
+    @Override
+    public void close() throws OrtException {
+        session.close();
+    }
+}
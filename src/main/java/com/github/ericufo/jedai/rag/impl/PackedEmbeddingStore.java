@@ -0,0 +1,1127 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embedding store keeping all vectors pre-normalized and int8-quantized in one contiguous
+ * {@code byte[]} slab.
+ * <p>
+ * Exact search is a single linear pass of integer dot products over the slab (unrolled so the JIT can
+ * vectorize it, see {@link VectorMath}) feeding a primitive {@link TopKHeap}, so no per-entry objects are touched
+ * or allocated while scoring. When a graph is enabled every new row is also inserted into an
+ * {@link HnswIndex}, which {@link #searchApproximate} walks instead of scanning. Either way the
+ * quantized scores only pick candidates: the best {@code jedai.rag.quantized.rescoreFactor}
+ * (default 4) times k of them are rescored against their full-precision vectors, which stay in
+ * the mapped segment files and are only on the heap until the rows are saved (see {@link #attach}).
+ * <p>
+ * Every row also has a sign code, one bit per dimension packed into {@code long}s.
+ * {@link #searchPrefiltered} ranks all rows by the Hamming distance of these codes, a few
+ * nanoseconds per row, and only scores the closest ones as above. With routing enabled, a
+ * {@link CentroidRouter} keeps document and page centroids and {@link #searchRouted} only scores
+ * the rows of the pages whose centroids are closest to the query.
+ * <p>
+ * Removal only tombstones a row so graph node ids stay stable; {@link #compact()} squeezes the slab
+ * and the graph together, {@link #compactIfNeeded()} only once tombstones make up a good part of it. Scores are reported as langchain4j relevance scores, {@code (cosine + 1) / 2}.
+ */
+public class PackedEmbeddingStore implements EmbeddingStore<TextSegment> {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int RESCORE_FACTOR = Math.max(1, Integer.getInteger("jedai.rag.quantized.rescoreFactor", 4));
+    // Ranges fitted to the first rows added to an empty store are widened, later rows may exceed them
+    private static final float SAMPLE_HEADROOM = 1.5f;
+    // Re-fit the ranges on compaction once more than this fraction of components was clamped
+    private static final double MAX_CLIPPED_FRACTION = 0.001;
+    // Compact once this fraction of the slab is tombstones
+    private static final double MAX_DELETED_FRACTION =
+            Double.parseDouble(System.getProperty("jedai.rag.store.maxDeletedFraction", "0.25"));
+    // Rewrite the saved graph once this many nodes per live row were inserted or dropped since
+    private static final double GRAPH_REWRITE_FRACTION =
+            Double.parseDouble(System.getProperty("jedai.rag.hnsw.rewriteFraction", "0.2"));
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> slotById = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+
+    private int dimension;
+    private ScalarQuantizer quantizer;
+    private byte[] codes = new byte[0];
+    private long encodedComponents;
+    private long clippedComponents;
+    // Sign bit of every component of every row, signWords() longs per row
+    private long[] signs = new long[0];
+    // Full-precision vector of each row: a row of a mapped index file, or a heap copy until it is saved
+    private BinaryIndexFile[] sourceFiles = new BinaryIndexFile[0];
+    private int[] sourceRows = new int[0];
+    private float[][] heapVectors = new float[0][];
+    private String[] ids = new String[0];
+    private TextSegment[] segments = new TextSegment[0];
+    private int slotCount;
+    private int liveCount;
+    // A view only answers searches; see view()
+    private boolean readOnly;
+    // Set while a view references the row arrays, which are then copied before rows are rewritten
+    private boolean slabShared;
+    private boolean sourcesShared;
+
+    private HnswIndex.Params graphParams;
+    private HnswIndex graph;
+    // Nodes inserted into or dropped from the graph since it was last written or loaded
+    private int graphChanges;
+    private CentroidRouter router;
+
+    public PackedEmbeddingStore() {
+    }
+
+    public PackedEmbeddingStore(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * Read-only view of the current content, to be published to readers while this store keeps
+     * changing. The view shares the slab and the row arrays instead of copying them: rows added
+     * later land beyond the rows it sees, and this store copies the shared arrays before it
+     * rewrites rows in place (compaction, re-quantization, {@link #attach}). Only the tombstones
+     * and the router are copied; the graph is shared node by node, see {@link HnswIndex#view()}.
+     *
+     * @return a view that only supports searches
+     */
+    public PackedEmbeddingStore view() {
+        lock.writeLock().lock();
+        try {
+            PackedEmbeddingStore view = new PackedEmbeddingStore(dimension);
+            view.readOnly = true;
+            view.quantizer = quantizer;
+            view.codes = codes;
+            view.signs = signs;
+            view.encodedComponents = encodedComponents;
+            view.clippedComponents = clippedComponents;
+            view.sourceFiles = sourceFiles;
+            view.sourceRows = sourceRows;
+            view.heapVectors = heapVectors;
+            view.ids = ids;
+            view.segments = segments;
+            view.deleted.or(deleted);
+            view.slotCount = slotCount;
+            view.liveCount = liveCount;
+            view.graphParams = graphParams;
+            view.graph = graph == null ? null : graph.view();
+            view.router = router == null ? null : router.copy();
+            slabShared = true;
+            sourcesShared = true;
+            return view;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maintains an HNSW graph over the store from now on, building it for rows already present
+     *
+     * @param params graph parameters
+     */
+    public void enableGraph(HnswIndex.Params params) {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            graphParams = params;
+            rebuildGraph();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maintains document and page centroids from now on, computing them for rows already present
+     *
+     * @param documentKey segment metadata key naming the document
+     * @param pageKey segment metadata key of the page number
+     */
+    public void enableRouting(String documentKey, String pageKey) {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            router = new CentroidRouter(documentKey, pageKey);
+            rebuildRouter();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fills an empty store from several mapped index files, skipping removed rows.
+     * The quantizer is fitted to all loaded rows; the store keeps the files as the source of the
+     * full-precision vectors, so they must stay open.
+     * <p>
+     * A persisted graph may have been written before the last changes to the files. Its nodes are
+     * matched to rows by id: rows it knows take the first slots in node order, the others follow
+     * in file order. Nodes of rows that are gone are dropped and new rows inserted, which is far
+     * cheaper than building the graph again.
+     *
+     * @param files the opened index files
+     * @param removed the removed rows of each file
+     * @param persistedGraph the graph last saved for these files, or null to build it if graphs are enabled
+     */
+    public void load(List<BinaryIndexFile> files, List<BitSet> removed, HnswIndex.Persisted persistedGraph) {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            if (slotCount != 0) {
+                throw new IllegalStateException("Store must be empty before loading an index file");
+            }
+            int count = 0;
+            for (int f = 0; f < files.size(); f++) {
+                count += files.get(f).size() - removed.get(f).cardinality();
+            }
+            if (count == 0) {
+                return;
+            }
+            for (BinaryIndexFile file : files) {
+                if (file.size() > 0) {
+                    dimension = file.dimension();
+                    break;
+                }
+            }
+            ensureCapacity(count);
+            // Live rows in file order
+            BinaryIndexFile[] rowFiles = new BinaryIndexFile[count];
+            int[] rows = new int[count];
+            Map<String, Integer> rowById = new HashMap<>(count * 2);
+            int live = 0;
+            for (int f = 0; f < files.size(); f++) {
+                BinaryIndexFile file = files.get(f);
+                BitSet fileRemoved = removed.get(f);
+                for (int row = 0; row < file.size(); row++) {
+                    if (fileRemoved.get(row)) {
+                        continue;
+                    }
+                    rowFiles[live] = file;
+                    rows[live] = row;
+                    rowById.put(file.id(row), live);
+                    live++;
+                }
+            }
+
+            boolean[] placed = new boolean[count];
+            int[] remap = null;
+            int slot = 0;
+            if (graphParams != null && persistedGraph != null) {
+                remap = new int[persistedGraph.nodeIds.length];
+                for (int node = 0; node < remap.length; node++) {
+                    String id = persistedGraph.nodeIds[node];
+                    Integer row = id == null ? null : rowById.get(id);
+                    if (row == null || placed[row]) {
+                        remap[node] = -1;
+                        continue;
+                    }
+                    placed[row] = true;
+                    place(slot, rowFiles[row], rows[row]);
+                    remap[node] = slot++;
+                }
+            }
+            int graphNodes = slot;
+            for (int row = 0; row < count; row++) {
+                if (!placed[row]) {
+                    place(slot++, rowFiles[row], rows[row]);
+                }
+            }
+            slotCount = count;
+            liveCount = count;
+            requantize();
+            if (router != null) {
+                rebuildRouter();
+            }
+            if (remap != null) {
+                graph = persistedGraph.graph;
+                graph.compact(remap, this::nodeScorer);
+                for (int i = graphNodes; i < count; i++) {
+                    graph.insert(this::nodeScorer);
+                }
+                graphChanges = (remap.length - graphNodes) + (count - graphNodes);
+            } else if (graphParams != null) {
+                rebuildGraph();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void place(int slot, BinaryIndexFile file, int row) {
+        sourceFiles[slot] = file;
+        sourceRows[slot] = row;
+        ids[slot] = file.id(row);
+        segments[slot] = file.segment(row);
+        slotById.put(ids[slot], slot);
+    }
+
+    /**
+     * @return the number of live (not removed) entries
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public boolean hasGraph() {
+        lock.readLock().lock();
+        try {
+            return graph != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Approximate heap used by vectors, in bytes: the code slabs plus the full vectors of rows
+     * that are not saved to an index file yet
+     */
+    public long vectorBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = codes.length + (long) signs.length * Long.BYTES;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (heapVectors[slot] != null) {
+                    bytes += (long) heapVectors[slot].length * Float.BYTES;
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding, null);
+        return id;
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        add(id, embedding, null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        add(id, embedding, segment);
+        return id;
+    }
+
+    public void add(String id, Embedding embedding, TextSegment segment) {
+        lock.writeLock().lock();
+        try {
+            addInternal(id, embedding.vector(), segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return addAll(embeddings, null);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> embedded) {
+        List<String> newIds = new ArrayList<>(embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            newIds.add(UUID.randomUUID().toString());
+        }
+        addAll(newIds, embeddings, embedded);
+        return newIds;
+    }
+
+    public void addAll(List<String> newIds, List<Embedding> embeddings, List<TextSegment> embedded) {
+        lock.writeLock().lock();
+        try {
+            if (quantizer == null && !embeddings.isEmpty()) {
+                fitToSample(embeddings);
+            }
+            ensureCapacity(slotCount + embeddings.size());
+            for (int i = 0; i < embeddings.size(); i++) {
+                addInternal(newIds.get(i), embeddings.get(i).vector(), embedded == null ? null : embedded.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            removeInternal(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> idsToRemove) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idsToRemove) {
+                removeInternal(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        lock.writeLock().lock();
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (!deleted.get(slot) && segments[slot] != null && filter.test(segments[slot].metadata())) {
+                    removeInternal(ids[slot]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            // Fresh arrays, the old ones may be shared with a view; dropping them lets the mappings of the index files go
+            codes = new byte[0];
+            signs = new long[0];
+            sourceFiles = new BinaryIndexFile[0];
+            sourceRows = new int[0];
+            heapVectors = new float[0][];
+            ids = new String[0];
+            segments = new TextSegment[0];
+            slabShared = false;
+            sourcesShared = false;
+            quantizer = null;
+            encodedComponents = 0;
+            clippedComponents = 0;
+            if (router != null) {
+                router.clear();
+            }
+            slotById.clear();
+            deleted.clear();
+            slotCount = 0;
+            liveCount = 0;
+            if (graphParams != null) {
+                graph = new HnswIndex(graphParams);
+            }
+            graphChanges = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Exact search: scores every live row by its quantized vector, then rescores the best
+     * candidates at full precision
+     */
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector().clone());
+        int k = request.maxResults();
+        Filter filter = request.filter();
+        // relevance = (cosine + 1) / 2, so the threshold can be checked on the raw dot product
+        float minCosine = (float) (2 * request.minScore() - 1);
+
+        lock.readLock().lock();
+        try {
+            if (liveCount == 0 || k <= 0) {
+                return new EmbeddingSearchResult<>(new ArrayList<>());
+            }
+            checkDimension(query);
+            ScalarQuantizer.Query encoded = quantizer.encodeQuery(query);
+            // The threshold is only checked on exact scores, a quantized score may be slightly low
+            TopKHeap candidates = new TopKHeap(Math.min(shortlistSize(k), liveCount));
+            for (int slot = 0, offset = 0; slot < slotCount; slot++, offset += dimension) {
+                float score = quantizer.score(encoded, codes, offset);
+                if ((candidates.isFull() && score <= candidates.minScore()) || deleted.get(slot)) {
+                    continue;
+                }
+                if (filter != null && (segments[slot] == null || !filter.test(segments[slot].metadata()))) {
+                    continue;
+                }
+                candidates.offer(slot, score);
+            }
+            return new EmbeddingSearchResult<>(rescore(query, candidates, k, minCosine));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Exact search for several queries in one pass over the slab: every row is scored against all
+     * queries while its codes are in cache, then the candidates of each query are rescored
+     *
+     * @param requests the search requests
+     * @return one result per request, in order
+     */
+    public List<EmbeddingSearchResult<TextSegment>> searchAll(List<EmbeddingSearchRequest> requests) {
+        int n = requests.size();
+        float[][] queries = new float[n][];
+        for (int i = 0; i < n; i++) {
+            queries[i] = VectorMath.normalize(requests.get(i).queryEmbedding().vector().clone());
+        }
+
+        lock.readLock().lock();
+        try {
+            ScalarQuantizer.Query[] encoded = new ScalarQuantizer.Query[n];
+            TopKHeap[] candidates = new TopKHeap[n];
+            for (int i = 0; i < n; i++) {
+                int k = requests.get(i).maxResults();
+                if (liveCount > 0 && k > 0) {
+                    checkDimension(queries[i]);
+                    encoded[i] = quantizer.encodeQuery(queries[i]);
+                    candidates[i] = new TopKHeap(Math.min(shortlistSize(k), liveCount));
+                }
+            }
+            for (int slot = 0, offset = 0; slot < slotCount; slot++, offset += dimension) {
+                if (deleted.get(slot)) {
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    TopKHeap heap = candidates[i];
+                    if (heap == null) {
+                        continue;
+                    }
+                    float score = quantizer.score(encoded[i], codes, offset);
+                    if (heap.isFull() && score <= heap.minScore()) {
+                        continue;
+                    }
+                    Filter filter = requests.get(i).filter();
+                    if (filter != null && (segments[slot] == null || !filter.test(segments[slot].metadata()))) {
+                        continue;
+                    }
+                    heap.offer(slot, score);
+                }
+            }
+
+            List<EmbeddingSearchResult<TextSegment>> results = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                EmbeddingSearchRequest request = requests.get(i);
+                float minCosine = (float) (2 * request.minScore() - 1);
+                results.add(new EmbeddingSearchResult<>(candidates[i] == null ? new ArrayList<>()
+                        : rescore(queries[i], candidates[i], request.maxResults(), minCosine)));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Approximate search through the HNSW graph; falls back to {@link #search} without a graph
+     *
+     * @param request the search request
+     * @param efSearch size of the dynamic candidate list, larger is slower but more accurate
+     */
+    public EmbeddingSearchResult<TextSegment> searchApproximate(EmbeddingSearchRequest request, int efSearch) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector().clone());
+        int k = request.maxResults();
+        Filter filter = request.filter();
+        float minCosine = (float) (2 * request.minScore() - 1);
+
+        lock.readLock().lock();
+        try {
+            if (graph == null) {
+                return search(request);
+            }
+            if (liveCount == 0 || k <= 0) {
+                return new EmbeddingSearchResult<>(new ArrayList<>());
+            }
+            checkDimension(query);
+            int ef = Math.max(efSearch, shortlistSize(k));
+            TopKHeap walked = new TopKHeap(ef);
+            graph.search(scorer(quantizer.encodeQuery(query)), ef, deleted, walked);
+
+            // Filter and threshold are applied after the walk, the threshold on the rescored candidates
+            int[] slots = new int[walked.size()];
+            float[] scores = new float[walked.size()];
+            int n = walked.drainDescending(slots, scores);
+            TopKHeap candidates = new TopKHeap(Math.max(n, 1));
+            for (int i = 0; i < n; i++) {
+                int slot = slots[i];
+                if (filter != null && (segments[slot] == null || !filter.test(segments[slot].metadata()))) {
+                    continue;
+                }
+                candidates.offer(slot, scores[i]);
+            }
+            return new EmbeddingSearchResult<>(rescore(query, candidates, k, minCosine));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Search with a sign-code prefilter: ranks every live row by the Hamming distance between its
+     * sign code and the query's, then scores only the closest rows by their quantized vectors and
+     * rescores the best of those at full precision
+     *
+     * @param request the search request
+     * @param candidateCount rows kept by the prefilter, larger is slower but more accurate
+     */
+    public EmbeddingSearchResult<TextSegment> searchPrefiltered(EmbeddingSearchRequest request, int candidateCount) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector().clone());
+        int k = request.maxResults();
+        Filter filter = request.filter();
+        float minCosine = (float) (2 * request.minScore() - 1);
+
+        lock.readLock().lock();
+        try {
+            if (liveCount == 0 || k <= 0) {
+                return new EmbeddingSearchResult<>(new ArrayList<>());
+            }
+            checkDimension(query);
+            int words = signWords();
+            long[] querySigns = new long[words];
+            for (int d = 0; d < dimension; d++) {
+                if (query[d] > 0) {
+                    querySigns[d >>> 6] |= 1L << d;
+                }
+            }
+            // Smaller distance is closer, so the heap keeps the largest negated distances
+            TopKHeap nearest = new TopKHeap(Math.min(Math.max(candidateCount, k), liveCount));
+            for (int slot = 0, offset = 0; slot < slotCount; slot++, offset += words) {
+                int distance = 0;
+                for (int w = 0; w < words; w++) {
+                    distance += Long.bitCount(querySigns[w] ^ signs[offset + w]);
+                }
+                float score = -distance;
+                if ((nearest.isFull() && score <= nearest.minScore()) || deleted.get(slot)) {
+                    continue;
+                }
+                if (filter != null && (segments[slot] == null || !filter.test(segments[slot].metadata()))) {
+                    continue;
+                }
+                nearest.offer(slot, score);
+            }
+
+            int[] slots = new int[nearest.size()];
+            int n = nearest.drainDescending(slots, new float[slots.length]);
+            ScalarQuantizer.Query encoded = quantizer.encodeQuery(query);
+            TopKHeap candidates = new TopKHeap(Math.max(Math.min(shortlistSize(k), n), 1));
+            for (int i = 0; i < n; i++) {
+                candidates.offer(slots[i], quantizer.score(encoded, codes, slots[i] * dimension));
+            }
+            return new EmbeddingSearchResult<>(rescore(query, candidates, k, minCosine));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Coarse-to-fine search: picks the closest documents and pages by their centroids and scores
+     * only the rows on those pages; falls back to {@link #search} without routing
+     *
+     * @param request the search request
+     * @param documentCount number of documents to look into
+     * @param pageCount number of pages of those documents to score
+     */
+    public EmbeddingSearchResult<TextSegment> searchRouted(EmbeddingSearchRequest request, int documentCount,
+                                                           int pageCount) {
+        float[] query = VectorMath.normalize(request.queryEmbedding().vector().clone());
+        int k = request.maxResults();
+        Filter filter = request.filter();
+        float minCosine = (float) (2 * request.minScore() - 1);
+
+        lock.readLock().lock();
+        try {
+            if (router == null) {
+                return search(request);
+            }
+            if (liveCount == 0 || k <= 0) {
+                return new EmbeddingSearchResult<>(new ArrayList<>());
+            }
+            checkDimension(query);
+            int[] routed = router.route(query, documentCount, pageCount);
+            ScalarQuantizer.Query encoded = quantizer.encodeQuery(query);
+            TopKHeap candidates = new TopKHeap(Math.max(Math.min(shortlistSize(k), routed.length), 1));
+            for (int slot : routed) {
+                if (deleted.get(slot)) {
+                    continue;
+                }
+                if (filter != null && (segments[slot] == null || !filter.test(segments[slot].metadata()))) {
+                    continue;
+                }
+                candidates.offer(slot, quantizer.score(encoded, codes, slot * dimension));
+            }
+            return new EmbeddingSearchResult<>(rescore(query, candidates, k, minCosine));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Re-points rows that were only held on the heap to their rows in a newly saved index file,
+     * releasing the heap copies. Rows of the file the store does not hold are ignored.
+     *
+     * @param file the saved index file; the store keeps it open
+     */
+    public void attach(BinaryIndexFile file) {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            for (int row = 0; row < file.size(); row++) {
+                Integer slot = slotById.get(file.id(row));
+                if (slot != null && heapVectors[slot] != null) {
+                    ownSources();
+                    sourceFiles[slot] = file;
+                    sourceRows[slot] = row;
+                    heapVectors[slot] = null;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts if more than {@code jedai.rag.store.maxDeletedFraction} (default 0.25) of the slab is
+     * removed rows, or if the quantizer needs re-fitting
+     *
+     * @return true if anything was removed
+     */
+    public boolean compactIfNeeded() {
+        lock.writeLock().lock();
+        try {
+            if (clippedComponents > encodedComponents * MAX_CLIPPED_FRACTION
+                    || slotCount - liveCount > slotCount * MAX_DELETED_FRACTION) {
+                return compact();
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops removed rows from the slab and the graph.
+     * Re-fits the quantizer if too many components fell outside its ranges since it was fitted.
+     *
+     * @return true if anything was removed
+     */
+    public boolean compact() {
+        lock.writeLock().lock();
+        try {
+            checkWritable();
+            if (clippedComponents > encodedComponents * MAX_CLIPPED_FRACTION) {
+                requantize();
+            }
+            if (liveCount == slotCount) {
+                return false;
+            }
+            ownSlab();
+            ownSources();
+            int[] remap = new int[slotCount];
+            int next = 0;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (deleted.get(slot)) {
+                    remap[slot] = -1;
+                    continue;
+                }
+                remap[slot] = next;
+                if (next != slot) {
+                    System.arraycopy(codes, slot * dimension, codes, next * dimension, dimension);
+                    System.arraycopy(signs, slot * signWords(), signs, next * signWords(), signWords());
+                    sourceFiles[next] = sourceFiles[slot];
+                    sourceRows[next] = sourceRows[slot];
+                    heapVectors[next] = heapVectors[slot];
+                    ids[next] = ids[slot];
+                    segments[next] = segments[slot];
+                    slotById.put(ids[next], next);
+                }
+                next++;
+            }
+            Arrays.fill(ids, next, slotCount, null);
+            Arrays.fill(segments, next, slotCount, null);
+            Arrays.fill(sourceFiles, next, slotCount, null);
+            Arrays.fill(heapVectors, next, slotCount, null);
+            deleted.clear();
+            slotCount = next;
+            if (graph != null) {
+                graph.compact(remap, this::nodeScorer);
+            }
+            if (router != null) {
+                router.compact(remap);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of every live entry, in slot order, for persistence
+     */
+    public Snapshot snapshot() {
+        lock.readLock().lock();
+        try {
+            List<String> idList = new ArrayList<>(liveCount);
+            List<float[]> vectorList = new ArrayList<>(liveCount);
+            List<TextSegment> segmentList = new ArrayList<>(liveCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (deleted.get(slot)) {
+                    continue;
+                }
+                idList.add(ids[slot]);
+                vectorList.add(fullVector(slot));
+                segmentList.add(segments[slot]);
+            }
+            return new Snapshot(idList, vectorList, segmentList);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the given live entries, in the given order; unknown ids are skipped
+     *
+     * @param wanted ids of the entries to copy
+     */
+    public Snapshot snapshot(Collection<String> wanted) {
+        lock.readLock().lock();
+        try {
+            checkWritable();
+            List<String> idList = new ArrayList<>(wanted.size());
+            List<float[]> vectorList = new ArrayList<>(wanted.size());
+            List<TextSegment> segmentList = new ArrayList<>(wanted.size());
+            for (String id : wanted) {
+                Integer slot = slotById.get(id);
+                if (slot == null) {
+                    continue;
+                }
+                idList.add(id);
+                vectorList.add(fullVector(slot));
+                segmentList.add(segments[slot]);
+            }
+            return new Snapshot(idList, vectorList, segmentList);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Persists the graph once more than {@code jedai.rag.hnsw.rewriteFraction} (default 0.2) of its
+     * nodes per live row were inserted or dropped since it was last written or loaded. Until then
+     * the saved graph lags behind and {@link #load} repairs it.
+     *
+     * @param path the graph file
+     * @return true if the graph was written
+     */
+    public boolean writeGraphIfStale(Path path) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (graph == null || graphChanges == 0 || graphChanges < liveCount * GRAPH_REWRITE_FRACTION) {
+                return false;
+            }
+            String[] nodeIds = new String[graph.size()];
+            for (int slot = 0; slot < nodeIds.length; slot++) {
+                nodeIds[slot] = deleted.get(slot) ? null : ids[slot];
+            }
+            graph.write(path, nodeIds);
+            graphChanges = 0;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int shortlistSize(int k) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) k * RESCORE_FACTOR);
+    }
+
+    /**
+     * Scores candidates picked by their quantized vectors against their full vectors
+     *
+     * @return the k best candidates at or above the threshold, best first
+     */
+    private List<EmbeddingMatch<TextSegment>> rescore(float[] query, TopKHeap candidates, int k, float minCosine) {
+        int[] slots = new int[candidates.size()];
+        float[] scores = new float[candidates.size()];
+        int n = candidates.drainDescending(slots, scores);
+        TopKHeap heap = new TopKHeap(k);
+        float[] vector = new float[dimension];
+        for (int i = 0; i < n; i++) {
+            readFullVector(slots[i], vector);
+            float cosine = VectorMath.dot(query, 0, vector, 0, dimension);
+            if (cosine >= minCosine) {
+                heap.offer(slots[i], cosine);
+            }
+        }
+        n = heap.drainDescending(slots, scores);
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int slot = slots[i];
+            matches.add(new EmbeddingMatch<>(RelevanceScore.fromCosineSimilarity(scores[i]),
+                    ids[slot], Embedding.from(fullVector(slot)), segments[slot]));
+        }
+        return matches;
+    }
+
+    private float[] fullVector(int slot) {
+        float[] vector = new float[dimension];
+        readFullVector(slot, vector);
+        return vector;
+    }
+
+    private void readFullVector(int slot, float[] dst) {
+        if (heapVectors[slot] != null) {
+            System.arraycopy(heapVectors[slot], 0, dst, 0, dimension);
+        } else {
+            sourceFiles[slot].readVector(sourceRows[slot], dst, 0);
+            VectorMath.normalize(dst);
+        }
+    }
+
+    private HnswIndex.NodeScorer scorer(ScalarQuantizer.Query query) {
+        ScalarQuantizer q = quantizer;
+        byte[] slab = codes;
+        int dim = dimension;
+        return node -> q.score(query, slab, node * dim);
+    }
+
+    /**
+     * Scores rows against one row for graph construction, by treating its decoded vector as a query
+     */
+    private HnswIndex.NodeScorer nodeScorer(int node) {
+        float[] decoded = new float[dimension];
+        quantizer.decode(codes, node * dimension, decoded);
+        return scorer(quantizer.encodeQuery(decoded));
+    }
+
+    /**
+     * Fits the quantizer of an empty store to the first rows added to it
+     */
+    private void fitToSample(List<Embedding> embeddings) {
+        float[] maxAbs = new float[embeddings.get(0).vector().length];
+        for (Embedding embedding : embeddings) {
+            float[] vector = VectorMath.normalize(embedding.vector().clone());
+            if (vector.length == maxAbs.length) {
+                ScalarQuantizer.updateRanges(vector, 0, maxAbs);
+            }
+        }
+        quantizer = ScalarQuantizer.fit(maxAbs, SAMPLE_HEADROOM);
+    }
+
+    /**
+     * Fits the quantizer to every row and re-encodes the slab from the full vectors.
+     * The graph keeps its links; they were chosen on the old codes but remain good routes.
+     */
+    private void requantize() {
+        if (slotCount == 0) {
+            return;
+        }
+        ownSlab();
+        float[] maxAbs = new float[dimension];
+        float[] vector = new float[dimension];
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!deleted.get(slot)) {
+                readFullVector(slot, vector);
+                ScalarQuantizer.updateRanges(vector, 0, maxAbs);
+            }
+        }
+        quantizer = ScalarQuantizer.fit(maxAbs, 1f);
+        encodedComponents = 0;
+        clippedComponents = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!deleted.get(slot)) {
+                readFullVector(slot, vector);
+                clippedComponents += quantizer.encode(vector, 0, codes, slot * dimension);
+                encodedComponents += dimension;
+                encodeSigns(slot);
+            }
+        }
+    }
+
+    private int signWords() {
+        return (dimension + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * Derives the sign code of a row from its quantized vector
+     */
+    private void encodeSigns(int slot) {
+        int words = signWords();
+        int codeOffset = slot * dimension;
+        Arrays.fill(signs, slot * words, (slot + 1) * words, 0L);
+        for (int d = 0; d < dimension; d++) {
+            if (codes[codeOffset + d] > 0) {
+                signs[slot * words + (d >>> 6)] |= 1L << d;
+            }
+        }
+    }
+
+    private void checkDimension(float[] query) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Query dimension " + query.length + " != store dimension " + dimension);
+        }
+    }
+
+    private void addInternal(String id, float[] vector, TextSegment segment) {
+        checkWritable();
+        if (dimension == 0) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalArgumentException("Embedding dimension " + vector.length + " != store dimension " + dimension);
+        }
+        // Re-adding an id replaces the entry; the old row becomes a tombstone
+        removeInternal(id);
+        float[] normalized = VectorMath.normalize(vector.clone());
+        if (quantizer == null) {
+            float[] maxAbs = new float[dimension];
+            ScalarQuantizer.updateRanges(normalized, 0, maxAbs);
+            quantizer = ScalarQuantizer.fit(maxAbs, SAMPLE_HEADROOM);
+        }
+        ensureCapacity(slotCount + 1);
+        int slot = slotCount++;
+        liveCount++;
+        slotById.put(id, slot);
+        clippedComponents += quantizer.encode(normalized, 0, codes, slot * dimension);
+        encodedComponents += dimension;
+        encodeSigns(slot);
+        heapVectors[slot] = normalized;
+        sourceFiles[slot] = null;
+        ids[slot] = id;
+        segments[slot] = segment;
+        if (graph != null) {
+            graph.insert(this::nodeScorer);
+            graphChanges++;
+        }
+        if (router != null) {
+            router.add(slot, segment, normalized);
+        }
+    }
+
+    private void removeInternal(String id) {
+        checkWritable();
+        Integer slot = slotById.remove(id);
+        if (slot == null) {
+            return;
+        }
+        // The segment stays until compaction, a view may still return the row
+        deleted.set(slot);
+        liveCount--;
+        if (graph != null) {
+            graphChanges++;
+        }
+        if (router != null) {
+            router.remove(slot, fullVector(slot));
+        }
+    }
+
+    private void rebuildRouter() {
+        router.clear();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!deleted.get(slot)) {
+                router.add(slot, segments[slot], fullVector(slot));
+            }
+        }
+    }
+
+    private void rebuildGraph() {
+        compact();
+        graph = new HnswIndex(graphParams);
+        for (int slot = 0; slot < slotCount; slot++) {
+            graph.insert(this::nodeScorer);
+        }
+        graphChanges = slotCount;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("A view of the store is read-only");
+        }
+    }
+
+    /**
+     * Copies the quantized rows, ids and segments if a view shares them
+     */
+    private void ownSlab() {
+        if (slabShared) {
+            codes = codes.clone();
+            signs = signs.clone();
+            ids = ids.clone();
+            segments = segments.clone();
+            slabShared = false;
+        }
+    }
+
+    /**
+     * Copies the sources of the full-precision vectors if a view shares them
+     */
+    private void ownSources() {
+        if (sourcesShared) {
+            sourceFiles = sourceFiles.clone();
+            sourceRows = sourceRows.clone();
+            heapVectors = heapVectors.clone();
+            sourcesShared = false;
+        }
+    }
+
+    private void ensureCapacity(int entries) {
+        if (entries > ids.length) {
+            int capacity = Math.max(entries, Math.max(INITIAL_CAPACITY, ids.length * 2));
+            ids = Arrays.copyOf(ids, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            sourceFiles = Arrays.copyOf(sourceFiles, capacity);
+            sourceRows = Arrays.copyOf(sourceRows, capacity);
+            heapVectors = Arrays.copyOf(heapVectors, capacity);
+        }
+        // The slab can only be sized once the dimension is known
+        int bytes = ids.length * dimension;
+        if (codes.length < bytes) {
+            codes = Arrays.copyOf(codes, bytes);
+        }
+        int words = ids.length * signWords();
+        if (signs.length < words) {
+            signs = Arrays.copyOf(signs, words);
+        }
+    }
+
+    /**
+     * Copy of the store content, in slot order
+     */
+    public static class Snapshot {
+        public final List<String> ids;
+        public final List<float[]> vectors;
+        public final List<TextSegment> segments;
+
+        Snapshot(List<String> ids, List<float[]> vectors, List<TextSegment> segments) {
+            this.ids = ids;
+            this.vectors = vectors;
+            this.segments = segments;
+        }
+    }
+}
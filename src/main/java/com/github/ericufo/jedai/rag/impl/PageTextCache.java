@@ -0,0 +1,191 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cache of extracted page text, one compressed file per document content hash.
+ * <p>
+ * A document is only parsed again when its bytes change; chunking, cleaning or model changes
+ * re-use the cached text. Files are memory-mapped and inflated straight from the mapping.
+ * <p>
+ * File layout (little-endian):
+ * <pre>
+ * header   24 bytes: magic, version, page count, uncompressed length, reserved
+ * payload  deflate stream of per page: int32 length + UTF-8 text, pages in order starting at 1
+ * </pre>
+ */
+public class PageTextCache {
+    private static final Logger LOG = Logger.getInstance(PageTextCache.class);
+    private static final long MAGIC = 0x4A45444149545854L; // "JEDAITXT"
+    // Bump when text extraction changes so cached pages are extracted again
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final String SUFFIX = ".pages";
+
+    private final Path directory;
+
+    public PageTextCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the cached pages of a document
+     *
+     * @param contentHash content hash of the document file
+     * @return page texts in page order, or null if nothing valid is cached
+     */
+    public List<String> get(String contentHash) {
+        Path file = fileFor(contentHash);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+                return null;
+            }
+            int pageCount = buffer.getInt(12);
+            int length = buffer.getInt(16);
+
+            ByteBuffer plain = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(buffer.position(HEADER_SIZE));
+                while (plain.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(plain) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+            if (plain.hasRemaining()) {
+                LOG.warn("Truncated page text cache entry " + file);
+                return null;
+            }
+            plain.flip();
+
+            List<String> pages = new ArrayList<>(pageCount);
+            for (int i = 0; i < pageCount; i++) {
+                byte[] bytes = new byte[plain.getInt()];
+                plain.get(bytes);
+                pages.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return pages;
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            LOG.warn("Failed to read page text cache entry " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the pages of a document; failures are logged, the cache is only an optimization
+     *
+     * @param contentHash content hash of the document file
+     * @param pages page texts in page order
+     */
+    public void put(String contentHash, List<String> pages) {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteBuffer lengthBytes = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (String page : pages) {
+            byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+            plain.write(lengthBytes.putInt(0, bytes.length).array(), 0, Integer.BYTES);
+            plain.write(bytes, 0, bytes.length);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try {
+            deflater.setInput(plain.toByteArray());
+            deflater.finish();
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                compressed.write(chunk, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC)
+                .putInt(VERSION)
+                .putInt(pages.size())
+                .putInt(plain.size())
+                .putInt(0);
+        header.flip();
+        ByteBuffer payload = ByteBuffer.wrap(compressed.toByteArray());
+
+        Path file = fileFor(contentHash);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to write page text cache entry " + file, e);
+        }
+    }
+
+    /**
+     * Deletes cached documents whose content hash is no longer in use
+     *
+     * @param liveHashes content hashes of the current documents
+     */
+    public void retainAll(Set<String> liveHashes) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!liveHashes.contains(name.substring(0, name.length() - SUFFIX.length()))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to prune page text cache", e);
+        }
+    }
+
+    private Path fileFor(String contentHash) {
+        return directory.resolve(contentHash + SUFFIX);
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Text stripper that walks a PDF once and hands over the text of each page as soon as the page
+ * is finished, instead of re-running the whole extraction for every page range.
+ */
+public class PageTextStripper extends PDFTextStripper {
+    private final PageHandler handler;
+    private final StringWriter pageBuffer = new StringWriter();
+
+    /**
+     * Receives the text of one page
+     */
+    public interface PageHandler {
+        /**
+         * @param pageNumber 1-based page number
+         * @param text the extracted page text
+         */
+        void onPage(int pageNumber, String text) throws IOException;
+    }
+
+    public PageTextStripper(PageHandler handler) throws IOException {
+        this.handler = handler;
+    }
+
+    /**
+     * Extracts all pages of the document in a single pass
+     *
+     * @param document the loaded PDF document
+     * @throws IOException if the document cannot be read
+     */
+    public void extractPages(PDDocument document) throws IOException {
+        pageBuffer.getBuffer().setLength(0);
+        writeText(document, pageBuffer);
+    }
+
+    @Override
+    protected void startPage(PDPage page) throws IOException {
+        // Drop anything the document prologue wrote, each page starts from an empty buffer
+        output.flush();
+        pageBuffer.getBuffer().setLength(0);
+        super.startPage(page);
+    }
+
+    @Override
+    protected void endPage(PDPage page) throws IOException {
+        super.endPage(page);
+        output.flush();
+        String text = pageBuffer.toString();
+        pageBuffer.getBuffer().setLength(0);
+        handler.onPage(getCurrentPageNo(), text);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.github.ericufo.jedai.rag.IndexStats;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * One stage of the ingestion pipeline: a group of worker threads that take items from an input
+ * queue, process them and put them on the output queue.
+ * <p>
+ * Queues are bounded, so a slow stage blocks its producers instead of letting work pile up in
+ * memory. A shared poison item marks the end of the input; the last worker of a stage to see it
+ * forwards it downstream, also when its worker ends abnormally. Items are forwarded even when
+ * processing fails, errors included, so the consumer at the end of the pipeline sees every item
+ * exactly once and always sees the end marker.
+ *
+ * @param <T> the work item type
+ */
+class PipelineStage<T> {
+    private static final Logger LOG = Logger.getInstance(PipelineStage.class);
+
+    /**
+     * Work done on each item
+     */
+    interface Task<T> {
+        void process(T item) throws Exception;
+    }
+
+    private final String name;
+    private final int threads;
+    private final BlockingQueue<T> input;
+    private final BlockingQueue<T> output;
+    private final T poison;
+    private final Task<T> task;
+    private final BiConsumer<T, Throwable> onFailure;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    PipelineStage(String name, int threads, BlockingQueue<T> input, BlockingQueue<T> output, T poison,
+                  Task<T> task, BiConsumer<T, Throwable> onFailure) {
+        this.name = name;
+        this.threads = threads;
+        this.input = input;
+        this.output = output;
+        this.poison = poison;
+        this.task = task;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Starts the worker threads of this stage
+     */
+    void start() {
+        running.set(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "JEDAI-index-" + name + "-" + (i + 1));
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Interrupts the worker threads of this stage and waits for them to end
+     *
+     * @param timeoutMillis how long to wait for each worker
+     */
+    void shutdown(long timeoutMillis) {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (worker.isAlive()) {
+                LOG.warn("Pipeline worker " + worker.getName() + " did not stop in time");
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                maxQueueDepth.accumulateAndGet(input.size(), Math::max);
+                T item = input.take();
+                if (item == poison) {
+                    // Leave the marker for the other workers of this stage
+                    input.put(poison);
+                    break;
+                }
+                long start = System.nanoTime();
+                try {
+                    task.process(item);
+                } catch (Throwable e) {
+                    onFailure.accept(item, e);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+                processed.incrementAndGet();
+                output.put(item);
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Pipeline stage " + name + " interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            if (running.decrementAndGet() == 0) {
+                forwardPoison();
+            }
+        }
+    }
+
+    private void forwardPoison() {
+        try {
+            output.put(poison);
+        } catch (InterruptedException e) {
+            // Shutting down; the consumer is being stopped too, so only try not to block
+            if (!output.offer(poison)) {
+                LOG.warn("Pipeline stage " + name + " could not forward the end marker");
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    IndexStats.StageStats getStats() {
+        return new IndexStats.StageStats(name, threads, processed.get(),
+                busyNanos.get() / 1_000_000, maxQueueDepth.get());
+    }
+}
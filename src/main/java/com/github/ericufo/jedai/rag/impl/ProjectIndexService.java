@@ -0,0 +1,102 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.github.ericufo.jedai.rag.CourseMaterial;
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binds a project to the shared index of its current course materials.
+ * <p>
+ * The index is chosen by the content of the materials, not by where the project lives, so
+ * two projects with the same slides share one index in {@link IndexRegistry}. When the
+ * materials change, the new index starts as a copy of the previous one; the first time a
+ * project is bound it starts from the index it used last, or from an index left in the working
+ * directory by older plugin versions.
+ */
+public class ProjectIndexService implements Disposable {
+    private static final Logger LOG = Logger.getInstance(ProjectIndexService.class);
+    private static final String KEY_PROPERTY = "jedai.rag.indexKey";
+
+    private final Project project;
+    private String key;
+    private volatile SimpleRagIndexer indexer;
+
+    public ProjectIndexService(Project project) {
+        this.project = project;
+    }
+
+    public static ProjectIndexService getInstance(Project project) {
+        return project.getService(ProjectIndexService.class);
+    }
+
+    /**
+     * @return the index of the project, or null before the materials were first bound
+     */
+    public SimpleRagIndexer getIndexer() {
+        return indexer;
+    }
+
+    /**
+     * Switches the project to the index of a material set
+     *
+     * @param materials the complete list of current course materials
+     * @param affectedPaths absolute paths of the documents that may have changed, or null for all
+     * @return the index to update
+     * @throws IOException if a material cannot be read
+     */
+    public synchronized SimpleRagIndexer bind(List<CourseMaterial> materials, Set<String> affectedPaths)
+            throws IOException {
+        // Unchanged documents keep the hash the current index recorded for them
+        Map<String, String> knownHashes = indexer != null ? indexer.getContentHashes() : Map.of();
+        List<String> hashes = new ArrayList<>();
+        for (CourseMaterial material : materials) {
+            String path = material.getFile().getAbsolutePath();
+            String hash = affectedPaths != null && !affectedPaths.contains(path) ? knownHashes.get(path) : null;
+            hashes.add(hash != null ? hash : IndexManifest.hashFile(material.getFile()));
+        }
+        String newKey = IndexRegistry.materialSetKey(hashes);
+        if (newKey.equals(key)) {
+            return indexer;
+        }
+
+        PropertiesComponent properties = PropertiesComponent.getInstance(project);
+        Path seed;
+        if (key != null) {
+            seed = IndexRegistry.getIndexDirectory(key);
+        } else if (properties.getValue(KEY_PROPERTY) != null) {
+            seed = IndexRegistry.getIndexDirectory(properties.getValue(KEY_PROPERTY));
+        } else {
+            Path legacy = Paths.get("").toAbsolutePath();
+            seed = Files.isRegularFile(legacy.resolve(SimpleRagIndexer.MANIFEST_FILE_NAME)) ? legacy : null;
+        }
+        SimpleRagIndexer bound = IndexRegistry.acquire(newKey, seed);
+        if (key != null) {
+            IndexRegistry.release(key);
+        }
+        LOG.info("Project " + project.getName() + " uses index " + newKey);
+        key = newKey;
+        indexer = bound;
+        properties.setValue(KEY_PROPERTY, newKey);
+        return bound;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (key != null) {
+            IndexRegistry.release(key);
+            key = null;
+            indexer = null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.github.ericufo.jedai.rag.RetrievedChunk;
+import dev.langchain4j.data.embedding.Embedding;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory caches of {@link SimpleRagRetriever}: query text to query embedding, and (query, k)
+ * to the retrieved chunks.
+ * <p>
+ * Both are LRUs keyed by the query text with whitespace normalized as in {@link EmbeddingCache}.
+ * An embedding only depends on the text and the model, so it stays valid across index changes.
+ * Results depend on the index, so they are tagged with the version of the snapshot they were
+ * computed on; versions are unique and increase with every publish, and the first result of a newer
+ * snapshot drops all older ones.
+ */
+public class QueryCache {
+    private final LinkedHashMap<String, Embedding> embeddings;
+    private final LinkedHashMap<String, List<RetrievedChunk>> results;
+    private long resultVersion = -1;
+    private long embeddingHits;
+    private long embeddingMisses;
+    private long resultHits;
+    private long resultMisses;
+
+    /**
+     * @param maxEmbeddings maximum number of cached query embeddings
+     * @param maxResults maximum number of cached result lists
+     */
+    public QueryCache(int maxEmbeddings, int maxResults) {
+        this.embeddings = lru(maxEmbeddings);
+        this.results = lru(maxResults);
+    }
+
+    private static <V> LinkedHashMap<String, V> lru(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks up the embedding of a query and counts the hit or miss
+     *
+     * @return the cached embedding, or null
+     */
+    public synchronized Embedding getEmbedding(String query) {
+        Embedding embedding = embeddings.get(EmbeddingCache.normalize(query));
+        if (embedding == null) {
+            embeddingMisses++;
+        } else {
+            embeddingHits++;
+        }
+        return embedding;
+    }
+
+    public synchronized void putEmbedding(String query, Embedding embedding) {
+        embeddings.put(EmbeddingCache.normalize(query), embedding);
+    }
+
+    /**
+     * Looks up the results of a query on one snapshot and counts the hit or miss
+     *
+     * @param version version of the snapshot the search runs on
+     * @return a copy of the cached results, or null
+     */
+    public synchronized List<RetrievedChunk> getResults(long version, String query, int k) {
+        List<RetrievedChunk> chunks = version == resultVersion ? results.get(resultKey(query, k)) : null;
+        if (chunks == null) {
+            resultMisses++;
+            return null;
+        }
+        resultHits++;
+        return new ArrayList<>(chunks);
+    }
+
+    /**
+     * Caches the results of a query; results of a snapshot older than the cached ones are ignored
+     *
+     * @param version version of the snapshot the results were computed on
+     */
+    public synchronized void putResults(long version, String query, int k, List<RetrievedChunk> chunks) {
+        if (version < resultVersion) {
+            return;
+        }
+        if (version > resultVersion) {
+            results.clear();
+            resultVersion = version;
+        }
+        results.put(resultKey(query, k), new ArrayList<>(chunks));
+    }
+
+    private static String resultKey(String query, int k) {
+        return k + "\u0000" + EmbeddingCache.normalize(query);
+    }
+
+    public synchronized long getEmbeddingHits() {
+        return embeddingHits;
+    }
+
+    public synchronized long getEmbeddingMisses() {
+        return embeddingMisses;
+    }
+
+    public synchronized long getResultHits() {
+        return resultHits;
+    }
+
+    public synchronized long getResultMisses() {
+        return resultMisses;
+    }
+}
@@ -1,77 +1,67 @@
 package com.github.ericufo.jedai.rag.impl;
 
 import com.github.ericufo.jedai.rag.CourseMaterial;
-import com.github.ericufo.jedai.rag.RagIndexer;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 
-import com.google.gson.Gson;
-
 /**
  * Automatically build RAG index when the project is opened
  */
 public class RagIndexerStartupActivity implements StartupActivity {
     private static final Logger LOG = Logger.getInstance(RagIndexerStartupActivity.class);
-    private static final String MATERIALS_CACHE_FILE = "rag_materials_cache.json";
 
     /**
-     * Main activity method that runs when the project is opened
+     * Collects the course materials and queues the indexing task when the project is opened
      * 
      * @param project the current project instance
      */
     @Override
     public void runActivity(@NotNull Project project) {
         try {
-            Path basePath = Paths.get(Objects.requireNonNull(project.getBasePath()));
-            Path cachePath = basePath.resolve(MATERIALS_CACHE_FILE);
-
-            RagIndexer indexer = new SimpleRagIndexer();
+            // Start loading the embedding model while materials are collected and hashed
+            EmbeddingModelService.getInstance();
 
             // Collect materials
-            List<CourseMaterial> materials = collectCourseMaterials(project);
+            File materialDir = findMaterialDirectory(project);
+            List<CourseMaterial> materials = collectFromDir(materialDir);
+            LOG.info("Collected materials count: " + materials.size());
 
-            // Check if materials have changed
-            if (materialsChanged(materials, cachePath)) {
-                LOG.info("Detected changes in course materials, clearing and rebuilding index");
-                indexer.clearIndex();
-                updateMaterialsCache(materials, cachePath);
-            } else if (indexer.isIndexed()) {
-                LOG.info("RAG index already exists and materials unchanged, skipping build");
-                return;
-            }
+            // Pick up slides added or changed while the project is open
+            MaterialDirectoryWatcher.getInstance(project).watch(materialDir);
 
             if (materials.isEmpty()) {
                 LOG.warn("No course material files found, unable to build index");
                 return;
             }
 
-            // Call index method to build index
-            indexer.index(materials);
-            updateMaterialsCache(materials, cachePath); // Update cache
-            LOG.info("RAG index build completed");
+            // A prebuilt bundle covers the slides shipped with the course, the rest is indexed here;
+            // a bundle already mounted into the index is skipped without being opened
+            Path bundle = IndexBundle.find(materialDir);
+            if (bundle != null) {
+                LOG.info("Found prebuilt index bundle: " + bundle);
+            }
+
+            // Indexing runs as a cancellable background task with progress
+            new RagIndexingTask(project, materials, null, bundle).queue();
         } catch (Exception e) {
-            LOG.error("Failed to build RAG index", e);
+            LOG.error("Failed to start RAG indexing", e);
         }
     }
 
     /**
-     * Collect course material files in the project
+     * Find the directory holding the course material files of the project
      * Example: Assume materials are in the "slides" folder under the sandbox root, supporting PDF and Text
      * 
      * @param project the current project instance
-     * @return list of collected course materials
+     * @return the first candidate directory with materials, else the "slides" folder of the project
      */
-    private List<CourseMaterial> collectCourseMaterials(Project project) {
-        List<CourseMaterial> materials = new ArrayList<>();
+    static File findMaterialDirectory(Project project) {
         String basePath = project.getBasePath();
         LOG.info("Project base path: " + basePath);
 
@@ -81,8 +71,7 @@ public class RagIndexerStartupActivity implements StartupActivity {
         File sandboxRootSlides = new File(sandboxRoot, "slides");
         if (sandboxRootSlides.exists() && sandboxRootSlides.isDirectory()) {
             LOG.info("Using sandbox root slides");
-            collectFromDir(sandboxRootSlides, materials);
-            if (!materials.isEmpty()) return materials;
+            if (!collectFromDir(sandboxRootSlides).isEmpty()) return sandboxRootSlides;
         }
 
         // use plugins path if available
@@ -91,87 +80,50 @@ public class RagIndexerStartupActivity implements StartupActivity {
             File sandboxSlides = new File(sandboxPath, "JEDAI/slides");
             if (sandboxSlides.exists() && sandboxSlides.isDirectory()) {
                 LOG.info("Using sandbox slides path: " + sandboxSlides.getAbsolutePath());
-                collectFromDir(sandboxSlides, materials);
-                if (!materials.isEmpty()) return materials;
+                if (!collectFromDir(sandboxSlides).isEmpty()) return sandboxSlides;
             }
         }
 
         File baseSlides = new File(basePath, "slides");
         LOG.info("Fallback to base slides path: " + baseSlides.getAbsolutePath());
-        collectFromDir(baseSlides, materials);
-
-        LOG.info("Collected materials count: " + materials.size());
-        return materials;
+        return baseSlides;
     }
 
     /**
      * Helper method to collect files from directory
      * 
      * @param dir the directory to search for files
-     * @param materials the list to add collected materials to
+     * @return the course materials directly inside the directory
      */
-    private void collectFromDir(File dir, List<CourseMaterial> materials) {
+    static List<CourseMaterial> collectFromDir(File dir) {
+        List<CourseMaterial> materials = new ArrayList<>();
         if (dir.exists() && dir.isDirectory()) {
             File[] files = dir.listFiles();
             if (files != null) {
                 for (File file : files) {
-                    String name = file.getName().toLowerCase();
-                    CourseMaterial.MaterialType type = null;
-                    if (name.endsWith(".pdf")) {
-                        type = CourseMaterial.MaterialType.PDF;
-                    } else if (name.endsWith(".txt")) {
-                        type = CourseMaterial.MaterialType.TEXT;
-                    }
+                    CourseMaterial.MaterialType type = materialType(file.getName());
                     if (type != null) {
                         materials.add(new CourseMaterial(file, type));
                     }
                 }
             }
         }
+        return materials;
     }
 
     /**
-     * Check if materials have changed: Compare file list and last modified time
-     * 
-     * @param currentMaterials the current list of materials
-     * @param cachePath the path to the cache file
-     * @return true if materials have changed, false otherwise
-     * @throws IOException if there is an error reading the cache file
-     */
-    private boolean materialsChanged(List<CourseMaterial> currentMaterials, Path cachePath) throws IOException {
-        if (!Files.exists(cachePath)) {
-            return true; // No cache, considered as changed
-        }
-        String json = Files.readString(cachePath);
-        Gson gson = new Gson();
-        @SuppressWarnings("unchecked")
-        Map<String, Long> cached = gson.fromJson(json, HashMap.class);
-
-        Map<String, Long> currentMap = new HashMap<>();
-        for (CourseMaterial mat : currentMaterials) {
-            String filePath = mat.getFile().getAbsolutePath();
-            long lastModified = mat.getFile().lastModified();
-            currentMap.put(filePath, lastModified);
-        }
-
-        return !currentMap.equals(cached);
-    }
-
-    /**
-     * Update material cache
+     * Helper method to tell course materials from other files
      * 
-     * @param materials the list of materials to cache
-     * @param cachePath the path to the cache file
-     * @throws IOException if there is an error writing the cache file
+     * @param fileName the file name
+     * @return the material type, or null if the file is not a course material
      */
-    private void updateMaterialsCache(List<CourseMaterial> materials, Path cachePath) throws IOException {
-        Map<String, Long> cacheMap = new HashMap<>();
-        for (CourseMaterial mat : materials) {
-            String filePath = mat.getFile().getAbsolutePath();
-            long lastModified = mat.getFile().lastModified();
-            cacheMap.put(filePath, lastModified);
+    static CourseMaterial.MaterialType materialType(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".pdf")) {
+            return CourseMaterial.MaterialType.PDF;
+        } else if (name.endsWith(".txt")) {
+            return CourseMaterial.MaterialType.TEXT;
         }
-        Gson gson = new Gson();
-        Files.writeString(cachePath, gson.toJson(cacheMap));
+        return null;
     }
 }
\ No newline at end of file
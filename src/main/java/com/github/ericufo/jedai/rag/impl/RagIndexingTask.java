@@ -0,0 +1,60 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.github.ericufo.jedai.rag.CourseMaterial;
+import com.github.ericufo.jedai.rag.IndexStats;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Background task that brings the RAG index up to date with the course materials.
+ * <p>
+ * Shows per-document progress, can be cancelled from the progress bar and paused with
+ * {@link com.github.ericufo.jedai.actions.PauseRagIndexingAction}. A cancelled run keeps the
+ * documents it finished; the next run continues with the rest.
+ */
+public class RagIndexingTask extends Task.Backgroundable {
+    private static final Logger LOG = Logger.getInstance(RagIndexingTask.class);
+
+    private final List<CourseMaterial> materials;
+    private final Set<String> affectedPaths;
+    private final Path bundle;
+
+    /**
+     * @param project the current project
+     * @param materials the complete list of current course materials
+     * @param affectedPaths absolute paths of the documents that may have changed, or null for all
+     * @param bundle a prebuilt index bundle to mount before indexing, may be null
+     */
+    public RagIndexingTask(Project project, List<CourseMaterial> materials, Set<String> affectedPaths, Path bundle) {
+        super(project, "JEDAI: Indexing course materials", true);
+        this.materials = materials;
+        this.affectedPaths = affectedPaths;
+        this.bundle = bundle;
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+        int count = affectedPaths != null ? affectedPaths.size() : materials.size();
+        indicator.setText("JEDAI: Indexing " + count + " course materials");
+        try {
+            // Projects with the same materials share one index
+            SimpleRagIndexer indexer = ProjectIndexService.getInstance(myProject).bind(materials, affectedPaths);
+            if (bundle != null) {
+                indicator.setText2("Mounting prebuilt index");
+                indexer.mountBundle(bundle, materials);
+            }
+            // Incremental update: only new, changed or removed documents are touched
+            IndexStats stats = indexer.index(materials, affectedPaths, indicator);
+            LOG.info("RAG index update " + (stats.isCancelled() ? "cancelled: " : "completed: ") + stats);
+        } catch (Exception e) {
+            LOG.error("Failed to build RAG index", e);
+        }
+    }
+}
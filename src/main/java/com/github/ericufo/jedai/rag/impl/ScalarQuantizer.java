@@ -0,0 +1,126 @@
+package com.github.ericufo.jedai.rag.impl;
+
+/**
+ * Per-dimension int8 scalar quantization of unit vectors.
+ * <p>
+ * Every dimension has its own scale, the range of that dimension divided by 127, and a component
+ * is stored as {@code round(x / scale)} clamped to [-127, 127]. A query is folded with the scales
+ * and quantized once, after which scoring a row is a single integer dot product:
+ * {@code q·x ≈ t · Σ round(q_d s_d / t) c_d}. These scores rank rows well but are approximate,
+ * so callers rescore their best candidates against the full-precision vectors.
+ * <p>
+ * Instances are immutable; a store that needs other ranges fits a new quantizer and re-encodes.
+ */
+public final class ScalarQuantizer {
+    private static final int MAX_CODE = 127;
+
+    private final float[] scales;
+
+    private ScalarQuantizer(float[] scales) {
+        this.scales = scales;
+    }
+
+    /**
+     * Fits the ranges to sample vectors
+     *
+     * @param maxAbs largest magnitude seen in each dimension
+     * @param headroom factor applied to the ranges, above 1 when the sample is small and later rows
+     *                 are likely to exceed it
+     * @return the quantizer
+     */
+    public static ScalarQuantizer fit(float[] maxAbs, float headroom) {
+        // A dimension that happened to stay near zero in the sample should not get a tiny range
+        double mean = 0;
+        for (float value : maxAbs) {
+            mean += value;
+        }
+        float floor = (float) (mean / Math.max(maxAbs.length, 1));
+        float[] scales = new float[maxAbs.length];
+        for (int d = 0; d < maxAbs.length; d++) {
+            float range = Math.max(maxAbs[d], floor) * headroom;
+            scales[d] = range > 0 ? range / MAX_CODE : 1f / MAX_CODE;
+        }
+        return new ScalarQuantizer(scales);
+    }
+
+    /**
+     * Records the magnitudes of a vector into the running per-dimension maximum used by {@link #fit}
+     */
+    public static void updateRanges(float[] vector, int offset, float[] maxAbs) {
+        for (int d = 0; d < maxAbs.length; d++) {
+            maxAbs[d] = Math.max(maxAbs[d], Math.abs(vector[offset + d]));
+        }
+    }
+
+    public int dimension() {
+        return scales.length;
+    }
+
+    /**
+     * Quantizes one vector
+     *
+     * @return the number of components that were outside the fitted range and got clamped
+     */
+    public int encode(float[] vector, int offset, byte[] codes, int codeOffset) {
+        int clipped = 0;
+        for (int d = 0; d < scales.length; d++) {
+            int code = Math.round(vector[offset + d] / scales[d]);
+            if (code > MAX_CODE) {
+                code = MAX_CODE;
+                clipped++;
+            } else if (code < -MAX_CODE) {
+                code = -MAX_CODE;
+                clipped++;
+            }
+            codes[codeOffset + d] = (byte) code;
+        }
+        return clipped;
+    }
+
+    /**
+     * Reconstructs the approximate vector of a code row
+     */
+    public void decode(byte[] codes, int codeOffset, float[] dst) {
+        for (int d = 0; d < scales.length; d++) {
+            dst[d] = codes[codeOffset + d] * scales[d];
+        }
+    }
+
+    /**
+     * Prepares a query for integer scoring
+     *
+     * @param query the query vector, of {@link #dimension()} floats
+     */
+    public Query encodeQuery(float[] query) {
+        float max = 0f;
+        for (int d = 0; d < scales.length; d++) {
+            max = Math.max(max, Math.abs(query[d] * scales[d]));
+        }
+        float step = max > 0 ? max / MAX_CODE : 1f;
+        byte[] codes = new byte[scales.length];
+        for (int d = 0; d < scales.length; d++) {
+            codes[d] = (byte) Math.round(query[d] * scales[d] / step);
+        }
+        return new Query(codes, step);
+    }
+
+    /**
+     * Approximate dot product of a prepared query with one code row
+     */
+    public float score(Query query, byte[] codes, int codeOffset) {
+        return query.step * VectorMath.dot(query.codes, 0, codes, codeOffset, scales.length);
+    }
+
+    /**
+     * A query folded with the scales and quantized to int8
+     */
+    public static final class Query {
+        final byte[] codes;
+        final float step;
+
+        Query(byte[] codes, float step) {
+            this.codes = codes;
+            this.step = step;
+        }
+    }
+}
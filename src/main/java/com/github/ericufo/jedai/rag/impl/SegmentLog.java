@@ -0,0 +1,775 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent form of the index: immutable segment files plus an append-only log, LSM-style.
+ * <p>
+ * Every save writes only the rows added since the previous one into a new
+ * {@link BinaryIndexFile} under {@code segments/} and appends one batch to the log:
+ * <pre>
+ * ADD     segment           a new segment file
+ * DELETE  segment, ids...   tombstones for rows of an earlier segment
+ * COMPACT inputs..., output adjacent segments replaced by their merged live rows
+ * COMMIT  generation        ends a batch; batches without it are ignored and truncated
+ * </pre>
+ * Each record is {@code int length, int crc32, payload}, so a save torn by a crash is detected
+ * on the next open. Reading the index merges the live rows of all segments in log order.
+ * <p>
+ * A background compactor keeps the number of segments at {@code jedai.rag.segments.max}
+ * (default 8) by folding the adjacent pair with the fewest live rows, and rewrites segments
+ * that are at least half tombstones. The saved HNSW graph names its rows by id, so merging
+ * never invalidates it. Afterwards the log is rewritten as a short checkpoint.
+ */
+public class SegmentLog {
+    private static final Logger LOG = Logger.getInstance(SegmentLog.class);
+    static final String LOG_FILE_NAME = "rag_materials_index.log";
+    static final String SEGMENT_DIR_NAME = "segments";
+    // Single-file index written by earlier versions, adopted as the first segment
+    static final String LEGACY_INDEX_FILE_NAME = "rag_materials_index.bin";
+    private static final int MAX_SEGMENTS = Integer.getInteger("jedai.rag.segments.max", 8);
+
+    private static final long MAGIC = 0x4A454441494C4F47L; // "JEDAILOG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_COMPACT = 3;
+    private static final byte TYPE_COMMIT = 4;
+
+    private final Path logPath;
+    private final Path segmentDir;
+
+    // Live segments in log order, with their row counts; guarded by this
+    private final Map<String, Integer> rowCounts = new LinkedHashMap<>();
+    private final Map<String, Set<String>> tombstones = new HashMap<>();
+    // Segment holding each live id, built the first time rows are read or written
+    private Map<String, String> segmentById;
+    private long generation;
+    private int nextSegment;
+    private boolean exists;
+    private boolean compacting;
+    // Incremented by clear(), tells a running compaction that its inputs are gone
+    private int epoch;
+
+    private SegmentLog(Path directory) {
+        this.logPath = directory.resolve(LOG_FILE_NAME);
+        this.segmentDir = directory.resolve(SEGMENT_DIR_NAME);
+    }
+
+    /**
+     * Replays the log of an index directory. Only the log is read; segment files are opened
+     * by {@link #openSegments()}.
+     *
+     * @param directory the index directory
+     * @return the log, empty if the directory holds no index
+     * @throws IOException if the log exists but cannot be read
+     */
+    public static SegmentLog open(Path directory) throws IOException {
+        SegmentLog log = new SegmentLog(directory);
+        if (Files.isRegularFile(log.logPath)) {
+            log.replay();
+        } else {
+            log.adoptLegacyIndex(directory.resolve(LEGACY_INDEX_FILE_NAME));
+        }
+        log.deleteOrphans();
+        return log;
+    }
+
+    /**
+     * Creates an empty log for a directory whose log cannot be read; the first commit replaces it
+     *
+     * @param directory the index directory
+     * @return the empty log
+     */
+    static SegmentLog empty(Path directory) {
+        return new SegmentLog(directory);
+    }
+
+    /**
+     * @return true once the log has been written, even if it holds no rows
+     */
+    public synchronized boolean exists() {
+        return exists;
+    }
+
+    /**
+     * @return the number of live rows over all segments
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Map.Entry<String, Integer> entry : rowCounts.entrySet()) {
+            size += entry.getValue() - tombstones.getOrDefault(entry.getKey(), Set.of()).size();
+        }
+        return size;
+    }
+
+    public synchronized int segmentCount() {
+        return rowCounts.size();
+    }
+
+    /**
+     * Random id of the last commit, used to match side files (e.g. the HNSW graph) to the rows
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Opens all live segments in log order. The caller reads the rows not marked as removed,
+     * in order; a merged segment stays readable through its mapping after the compactor deletes it.
+     *
+     * @return the segments with their removed rows
+     * @throws IOException if a segment file cannot be opened
+     */
+    public synchronized List<Segment> openSegments() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        Map<String, String> ids = new HashMap<>();
+        for (String name : rowCounts.keySet()) {
+            BinaryIndexFile file = BinaryIndexFile.open(segmentDir.resolve(name));
+            Set<String> removedIds = tombstones.getOrDefault(name, Set.of());
+            BitSet removed = new BitSet();
+            for (int row = 0; row < file.size(); row++) {
+                String id = file.id(row);
+                if (removedIds.contains(id)) {
+                    removed.set(row);
+                } else {
+                    ids.put(id, name);
+                }
+            }
+            segments.add(new Segment(file, removed));
+        }
+        segmentById = ids;
+        return segments;
+    }
+
+    /**
+     * Durably records one save: tombstones for removed rows and a new segment for added ones.
+     * Added ids that are already live are replaced, so their old rows get tombstones too.
+     *
+     * @param removedIds ids removed since the last commit; ids never committed are ignored
+     * @param added rows added since the last commit, in store order
+     * @return the new segment, opened before the compactor can merge it away, or null if no rows
+     *         were added; the generation of the commit is {@link #getGeneration()}
+     * @throws IOException if the segment or log cannot be written; nothing is recorded then
+     */
+    public synchronized BinaryIndexFile commit(Collection<String> removedIds, PackedEmbeddingStore.Snapshot added)
+            throws IOException {
+        Map<String, String> live = liveIds();
+        Map<String, Set<String>> deletes = new LinkedHashMap<>();
+        Set<String> replaced = new HashSet<>(removedIds);
+        replaced.addAll(added.ids);
+        for (String id : replaced) {
+            String segment = live.get(id);
+            if (segment != null) {
+                deletes.computeIfAbsent(segment, s -> new HashSet<>()).add(id);
+            }
+        }
+
+        String name = null;
+        long nextGeneration = new SecureRandom().nextLong();
+        if (!added.ids.isEmpty()) {
+            name = segmentName(nextSegment);
+            Files.createDirectories(segmentDir);
+            BinaryIndexFile.write(segmentDir.resolve(name), added.ids, added.vectors, added.segments, nextGeneration);
+        }
+
+        Batch batch = new Batch();
+        for (Map.Entry<String, Set<String>> entry : deletes.entrySet()) {
+            batch.delete(entry.getKey(), entry.getValue());
+        }
+        if (name != null) {
+            batch.add(name);
+        }
+        batch.commit(nextGeneration);
+        try {
+            append(batch);
+        } catch (IOException e) {
+            if (name != null) {
+                Files.deleteIfExists(segmentDir.resolve(name));
+            }
+            throw e;
+        }
+
+        int removedRows = 0;
+        for (Map.Entry<String, Set<String>> entry : deletes.entrySet()) {
+            tombstones.computeIfAbsent(entry.getKey(), s -> new HashSet<>()).addAll(entry.getValue());
+            for (String id : entry.getValue()) {
+                live.remove(id);
+            }
+            removedRows += entry.getValue().size();
+        }
+        if (name != null) {
+            nextSegment++;
+            rowCounts.put(name, added.ids.size());
+            for (String id : added.ids) {
+                live.put(id, name);
+            }
+        }
+        generation = nextGeneration;
+        LOG.info("Committed " + added.ids.size() + " rows and " + removedRows + " tombstones, "
+                + rowCounts.size() + " segments");
+        return name != null ? BinaryIndexFile.open(segmentDir.resolve(name)) : null;
+    }
+
+    /**
+     * Starts the compactor on a pooled thread if the segments need it and it is not running
+     */
+    public synchronized void compactInBackground() {
+        if (compacting || !needsCompaction()) {
+            return;
+        }
+        compacting = true;
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            // Pooled threads are shared, so the priority is only lowered while merging
+            Thread current = Thread.currentThread();
+            int priority = current.getPriority();
+            current.setPriority(Thread.MIN_PRIORITY);
+            try {
+                compact();
+            } finally {
+                current.setPriority(priority);
+            }
+        });
+    }
+
+    /**
+     * Copies the log and all live segments into another directory. Segment files never change,
+     * so they are hard-linked where the file system allows it.
+     *
+     * @param target the index directory to copy to
+     * @throws IOException if a file cannot be copied
+     */
+    public synchronized void copyTo(Path target) throws IOException {
+        if (!exists) {
+            return;
+        }
+        Path targetSegments = target.resolve(SEGMENT_DIR_NAME);
+        Files.createDirectories(targetSegments);
+        for (String name : rowCounts.keySet()) {
+            linkOrCopy(segmentDir.resolve(name), targetSegments.resolve(name));
+        }
+        Files.copy(logPath, target.resolve(LOG_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies the index files of a directory that no indexer has open
+     */
+    static void copyFiles(Path source, Path target) throws IOException {
+        Path legacy = source.resolve(LEGACY_INDEX_FILE_NAME);
+        if (!Files.isRegularFile(source.resolve(LOG_FILE_NAME)) && Files.isRegularFile(legacy)) {
+            Files.createDirectories(target);
+            Files.copy(legacy, target.resolve(LEGACY_INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        open(source).copyTo(target);
+    }
+
+    /**
+     * Deletes the log and all segments
+     */
+    public synchronized void clear() throws IOException {
+        epoch++;
+        for (String name : rowCounts.keySet()) {
+            try {
+                Files.deleteIfExists(segmentDir.resolve(name));
+            } catch (IOException e) {
+                // Still mapped by a search snapshot (Windows); removed as an orphan on the next open
+                LOG.info("Could not delete segment " + name + " yet");
+            }
+        }
+        rowCounts.clear();
+        tombstones.clear();
+        segmentById = new HashMap<>();
+        exists = false;
+        Files.deleteIfExists(logPath);
+    }
+
+    private Map<String, String> liveIds() throws IOException {
+        if (segmentById == null) {
+            openSegments();
+        }
+        return segmentById;
+    }
+
+    private boolean needsCompaction() {
+        return rowCounts.size() > MAX_SEGMENTS || mostlyDeletedSegment() != null;
+    }
+
+    private String mostlyDeletedSegment() {
+        for (Map.Entry<String, Integer> entry : rowCounts.entrySet()) {
+            int removed = tombstones.getOrDefault(entry.getKey(), Set.of()).size();
+            if (removed > 0 && removed * 2 >= entry.getValue()) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the segments to merge next; they are always adjacent so the row order is kept
+     */
+    private List<String> pickInputs() {
+        String purge = mostlyDeletedSegment();
+        if (purge != null) {
+            return List.of(purge);
+        }
+        List<String> names = new ArrayList<>(rowCounts.keySet());
+        int best = 0;
+        int bestRows = Integer.MAX_VALUE;
+        for (int i = 0; i + 1 < names.size(); i++) {
+            int rows = liveRows(names.get(i)) + liveRows(names.get(i + 1));
+            if (rows < bestRows) {
+                best = i;
+                bestRows = rows;
+            }
+        }
+        return List.of(names.get(best), names.get(best + 1));
+    }
+
+    private int liveRows(String name) {
+        return rowCounts.get(name) - tombstones.getOrDefault(name, Set.of()).size();
+    }
+
+    private void compact() {
+        while (true) {
+            List<String> inputs;
+            Map<String, Set<String>> seen = new HashMap<>();
+            String output;
+            int startEpoch;
+            synchronized (this) {
+                if (!needsCompaction()) {
+                    compacting = false;
+                    return;
+                }
+                inputs = pickInputs();
+                for (String name : inputs) {
+                    seen.put(name, new HashSet<>(tombstones.getOrDefault(name, Set.of())));
+                }
+                output = segmentName(nextSegment++);
+                startEpoch = epoch;
+            }
+            try {
+                // Segments are immutable, so the merge itself runs without the lock
+                List<String> ids = new ArrayList<>();
+                List<float[]> vectors = new ArrayList<>();
+                List<TextSegment> segments = new ArrayList<>();
+                for (String name : inputs) {
+                    BinaryIndexFile file = BinaryIndexFile.open(segmentDir.resolve(name));
+                    for (int row = 0; row < file.size(); row++) {
+                        String id = file.id(row);
+                        if (!seen.get(name).contains(id)) {
+                            ids.add(id);
+                            vectors.add(file.vector(row));
+                            segments.add(file.segment(row));
+                        }
+                    }
+                }
+                BinaryIndexFile.write(segmentDir.resolve(output), ids, vectors, segments, new SecureRandom().nextLong());
+                synchronized (this) {
+                    if (epoch != startEpoch) {
+                        Files.deleteIfExists(segmentDir.resolve(output));
+                        compacting = false;
+                        return;
+                    }
+                    replaceSegments(inputs, output, ids, seen);
+                }
+                LOG.info("Compacted " + inputs + " into " + output + " (" + ids.size() + " rows)");
+            } catch (IOException e) {
+                LOG.warn("Index compaction failed, keeping the segments as they are", e);
+                try {
+                    Files.deleteIfExists(segmentDir.resolve(output));
+                } catch (IOException ignored) {
+                    // Removed as an orphan on the next open
+                }
+                synchronized (this) {
+                    compacting = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swaps merged segments for their output; must hold the lock
+     */
+    private void replaceSegments(List<String> inputs, String output, List<String> outputIds,
+                                 Map<String, Set<String>> seen) throws IOException {
+        // Rows removed while the merge ran are in the output and need tombstones there
+        Set<String> carried = new HashSet<>();
+        for (String name : inputs) {
+            Set<String> removed = new HashSet<>(tombstones.getOrDefault(name, Set.of()));
+            removed.removeAll(seen.get(name));
+            carried.addAll(removed);
+        }
+        Batch batch = new Batch();
+        batch.compact(inputs, output);
+        if (!carried.isEmpty()) {
+            batch.delete(output, carried);
+        }
+        batch.commit(generation);
+        append(batch);
+
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : rowCounts.entrySet()) {
+            if (entry.getKey().equals(inputs.get(0))) {
+                counts.put(output, outputIds.size());
+            } else if (!inputs.contains(entry.getKey())) {
+                counts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        rowCounts.clear();
+        rowCounts.putAll(counts);
+        for (String name : inputs) {
+            tombstones.remove(name);
+        }
+        if (!carried.isEmpty()) {
+            tombstones.put(output, carried);
+        }
+        if (segmentById != null) {
+            for (String id : outputIds) {
+                if (!carried.contains(id)) {
+                    segmentById.put(id, output);
+                }
+            }
+        }
+        writeCheckpoint();
+        for (String name : inputs) {
+            try {
+                Files.deleteIfExists(segmentDir.resolve(name));
+            } catch (IOException e) {
+                // Still mapped somewhere (Windows); removed as an orphan on the next open
+                LOG.info("Could not delete merged segment " + name + " yet");
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log as the minimal batch describing the current segments
+     */
+    private void writeCheckpoint() throws IOException {
+        Batch batch = new Batch();
+        for (String name : rowCounts.keySet()) {
+            batch.add(name);
+            Set<String> removed = tombstones.get(name);
+            if (removed != null && !removed.isEmpty()) {
+                batch.delete(name, removed);
+            }
+        }
+        batch.commit(generation);
+        writeCheckpointWith(batch);
+    }
+
+    private void append(Batch batch) throws IOException {
+        if (!exists) {
+            writeCheckpointWith(batch);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, batch.toBuffer());
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Starts a new log holding only the given batch
+     */
+    private void writeCheckpointWith(Batch batch) throws IOException {
+        Files.createDirectories(logPath.getParent());
+        Path tmp = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, header());
+            writeFully(channel, batch.toBuffer());
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        exists = true;
+    }
+
+    private void replay() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(logPath));
+        if (in.remaining() < HEADER_SIZE || in.getLong() != MAGIC || in.getInt() != VERSION) {
+            LOG.warn("Unreadable index log " + logPath + ", starting a new index");
+            return;
+        }
+        exists = true;
+        List<Runnable> pending = new ArrayList<>();
+        long committedLength = in.position();
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= 2 * Integer.BYTES) {
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > in.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            byte type = record.get();
+            switch (type) {
+                case TYPE_ADD: {
+                    String name = readString(record);
+                    pending.add(() -> rowCounts.put(name, Math.max(0,
+                            BinaryIndexFile.readSegmentCount(segmentDir.resolve(name)))));
+                    break;
+                }
+                case TYPE_DELETE: {
+                    String name = readString(record);
+                    List<String> ids = readStrings(record);
+                    pending.add(() -> tombstones.computeIfAbsent(name, s -> new HashSet<>()).addAll(ids));
+                    break;
+                }
+                case TYPE_COMPACT: {
+                    List<String> inputs = readStrings(record);
+                    String output = readString(record);
+                    pending.add(() -> {
+                        Map<String, Integer> counts = new LinkedHashMap<>();
+                        for (Map.Entry<String, Integer> entry : rowCounts.entrySet()) {
+                            if (entry.getKey().equals(inputs.get(0))) {
+                                counts.put(output, Math.max(0,
+                                        BinaryIndexFile.readSegmentCount(segmentDir.resolve(output))));
+                            } else if (!inputs.contains(entry.getKey())) {
+                                counts.put(entry.getKey(), entry.getValue());
+                            }
+                        }
+                        rowCounts.clear();
+                        rowCounts.putAll(counts);
+                        inputs.forEach(tombstones::remove);
+                    });
+                    break;
+                }
+                case TYPE_COMMIT:
+                    generation = record.getLong();
+                    pending.forEach(Runnable::run);
+                    pending.clear();
+                    committedLength = in.position();
+                    break;
+                default:
+                    throw new IOException("Unknown index log record " + type + " in " + logPath);
+            }
+        }
+        if (committedLength < in.limit()) {
+            LOG.warn("Discarding an incomplete save at the end of " + logPath);
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.truncate(committedLength);
+            }
+        }
+        for (String name : rowCounts.keySet()) {
+            nextSegment = Math.max(nextSegment, segmentNumber(name) + 1);
+        }
+    }
+
+    /**
+     * Turns a single-file index of an earlier version into the first segment, keeping its generation
+     */
+    private void adoptLegacyIndex(Path legacy) throws IOException {
+        int rows = BinaryIndexFile.readSegmentCount(legacy);
+        if (rows < 0) {
+            return;
+        }
+        long legacyGeneration = BinaryIndexFile.readGeneration(legacy);
+        String name = segmentName(nextSegment);
+        Files.createDirectories(segmentDir);
+        Files.move(legacy, segmentDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        Batch batch = new Batch();
+        batch.add(name);
+        batch.commit(legacyGeneration);
+        writeCheckpointWith(batch);
+        nextSegment++;
+        rowCounts.put(name, rows);
+        generation = legacyGeneration;
+        LOG.info("Converted single-file index with " + rows + " rows into a segment");
+    }
+
+    /**
+     * Removes segment files left behind by a crash or an undeletable merge input
+     */
+    private void deleteOrphans() {
+        if (!Files.isDirectory(segmentDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!rowCounts.containsKey(name)) {
+                    nextSegment = Math.max(nextSegment, segmentNumber(name) + 1);
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        LOG.info("Could not delete orphaned segment " + name);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to clean up segment directory " + segmentDir, e);
+        }
+    }
+
+    private static String segmentName(int number) {
+        return String.format("seg-%06d.bin", number);
+    }
+
+    private static int segmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(4, name.indexOf('.')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putInt(VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * A live segment opened for reading
+     */
+    public static class Segment {
+        public final BinaryIndexFile file;
+        // Rows with a tombstone
+        public final BitSet removed;
+
+        Segment(BinaryIndexFile file, BitSet removed) {
+            this.file = file;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Records of one log batch, framed with length and checksum
+     */
+    private static class Batch {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        void add(String segment) throws IOException {
+            record(out -> {
+                out.writeByte(TYPE_ADD);
+                writeString(out, segment);
+            });
+        }
+
+        void delete(String segment, Collection<String> ids) throws IOException {
+            record(out -> {
+                out.writeByte(TYPE_DELETE);
+                writeString(out, segment);
+                writeStrings(out, ids);
+            });
+        }
+
+        void compact(Collection<String> inputs, String output) throws IOException {
+            record(out -> {
+                out.writeByte(TYPE_COMPACT);
+                writeStrings(out, inputs);
+                writeString(out, output);
+            });
+        }
+
+        void commit(long generation) throws IOException {
+            record(out -> {
+                out.writeByte(TYPE_COMMIT);
+                out.writeLong(generation);
+            });
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        private void record(RecordWriter writer) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(payload));
+            byte[] data = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(data.length);
+            out.writeInt((int) crc.getValue());
+            out.write(data);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+            out.writeInt(values.size());
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+
+        private interface RecordWriter {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.github.ericufo.jedai.rag.impl;
 
 import com.github.ericufo.jedai.rag.CourseMaterial;
+import com.github.ericufo.jedai.rag.IndexCoverage;
 import com.github.ericufo.jedai.rag.IndexStats;
 import com.github.ericufo.jedai.rag.RagIndexer;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.Metadata;
@@ -11,191 +13,1220 @@ import dev.langchain4j.data.document.parser.TextDocumentParser;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2q.AllMiniLmL6V2QuantizedEmbeddingModel;
-import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 import static dev.langchain4j.data.document.loader.FileSystemDocumentLoader.loadDocument;
 
 /**
- * Simple RAG indexer implementation for indexing and retrieving course materials
+ * Simple RAG indexer implementation for indexing and retrieving course materials.
+ * <p>
+ * One instance owns one index directory. Instances are shared between projects with the same
+ * course materials through {@link IndexRegistry}; the embedding and page text caches are shared
+ * by all of them.
  */
 public class SimpleRagIndexer implements RagIndexer {
     private static final Logger LOG = Logger.getInstance(SimpleRagIndexer.class);
 
-    private static final InMemoryEmbeddingStore<TextSegment> EMBEDDING_STORE = new InMemoryEmbeddingStore<>();
-    private static final Path INDEX_FILE_PATH = Paths.get("rag_materials_meta.json");
+    static final String GRAPH_FILE_NAME = "rag_materials_index.hnsw";
+    static final String MANIFEST_FILE_NAME = "rag_materials_manifest.json";
+    private static final Path LEGACY_INDEX_FILE_PATH = Paths.get("rag_materials_meta.json");
+    private static final Path EMBEDDING_CACHE_PATH = IndexRegistry.getCacheDirectory().resolve("rag_embedding_cache.bin");
+    private static final PageTextCache PAGE_TEXT_CACHE =
+            new PageTextCache(IndexRegistry.getCacheDirectory().resolve("rag_text_cache"));
+    // About 1.5 KB per 384-dimensional vector
+    private static final int EMBEDDING_CACHE_MAX_ENTRIES = Integer.getInteger("jedai.rag.embeddingCache.maxEntries", 20_000);
+    private static final HnswIndex.Params GRAPH_PARAMS = HnswIndex.Params.fromSystemProperties();
+    // Shared by all instances, so a snapshot version identifies one snapshot of one index
+    private static final AtomicLong SNAPSHOT_VERSION = new AtomicLong();
+    // Minimum time between two publishes while documents are being stored
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("jedai.rag.snapshotIntervalMs", 500);
 
-    static {
-        // Load from persistent file if exists
-        if (Files.exists(INDEX_FILE_PATH)) {
+    static final int CHUNK_SIZE = 500;
+    static final int CHUNK_OVERLAP = 100; // 100 characters overlap allowed
+    // Bump whenever cleanText changes so stored documents are re-split
+    static final int TEXT_VERSION = 1;
+
+    private static final Pattern CONTROL_CHARS = Pattern.compile("[\\p{Cntrl}&&[^\\n\\t]]");
+    private static final Pattern TRAILING_BLANKS = Pattern.compile("[ \\t]+$", Pattern.MULTILINE);
+    private static final Pattern BLANK_LINES = Pattern.compile("\\n{3,}");
+
+    private static final int PARSE_THREADS = Integer.getInteger("jedai.rag.pipeline.parseThreads", 2);
+    private static final int EMBED_THREADS = Integer.getInteger("jedai.rag.pipeline.embedThreads", 2);
+    // Documents allowed to wait between two stages
+    private static final int PIPELINE_QUEUE_CAPACITY = Integer.getInteger("jedai.rag.pipeline.queueCapacity", 4);
+    // Shared by PDF parsing and embedding, the steps that keep cores busy
+    private static final IndexingThrottle THROTTLE =
+            IndexingThrottle.forIde(Runtime.getRuntime().availableProcessors());
+
+    private static final long PAUSE_POLL_MS = 200;
+    private static final long STAGE_SHUTDOWN_TIMEOUT_MS = 5_000;
+    private static EmbeddingExecutor embeddingExecutor;
+    private static EmbeddingCache embeddingCache;
+
+    private final Path directory;
+    private final Path graphFilePath;
+    private final Path manifestFilePath;
+    private final PackedEmbeddingStore embeddingStore = createEmbeddingStore();
+    private final LexicalIndex lexicalIndex = new LexicalIndex();
+
+    // Searches read published copies of embeddingStore, which only the indexer touches
+    private final AtomicReference<IndexSnapshot> currentSnapshot =
+            new AtomicReference<>(new IndexSnapshot(0, new PackedEmbeddingStore()));
+    private volatile long lastPublishMillis;
+    // Orders publishes without the indexer monitor, so copying the store never holds up loading
+    private final Object publishLock = new Object();
+
+    // Opening only replays the segment log; segment files are read on first use
+    private final SegmentLog segmentLog;
+    // Set once the store is loaded, so searches after that skip the monitor
+    private volatile boolean loaded;
+    // Store changes not yet committed to the segment log, in store order
+    private final Set<String> unsavedAdds = new LinkedHashSet<>();
+    private final Set<String> unsavedRemovals = new HashSet<>();
+
+    // Coverage by absolute path, updated as documents move through the pipeline
+    private final Map<String, DocumentState> documentStates = new ConcurrentHashMap<>();
+    private volatile boolean indexing;
+    // Runs started by the startup activity and by the directory watcher take turns
+    private final ReentrantLock indexLock = new ReentrantLock();
+
+    // Pipeline workers wait on this lock while indexing is paused
+    private final Object pauseLock = new Object();
+    private volatile boolean paused;
+
+    private enum DocumentState {
+        PENDING,
+        KEYWORD_ONLY,
+        INDEXED
+    }
+
+    /**
+     * Creates an indexer for an index directory; use {@link IndexRegistry#acquire} to share it
+     *
+     * @param directory the directory holding the index files, created on first save
+     */
+    public SimpleRagIndexer(Path directory) {
+        this.directory = directory;
+        this.graphFilePath = directory.resolve(GRAPH_FILE_NAME);
+        this.manifestFilePath = directory.resolve(MANIFEST_FILE_NAME);
+        this.segmentLog = openSegmentLog();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private static PackedEmbeddingStore createEmbeddingStore() {
+        PackedEmbeddingStore store = new PackedEmbeddingStore();
+        store.enableGraph(GRAPH_PARAMS);
+        // Every segment carries its lecture file and page, see split
+        store.enableRouting("file_name", "page_number");
+        return store;
+    }
+
+    /**
+     * Replays the segment log so unchanged documents keep their vectors across restarts
+     *
+     * @return the log, empty if nothing valid was persisted
+     */
+    private SegmentLog openSegmentLog() {
+        try {
+            return SegmentLog.open(directory);
+        } catch (IOException e) {
+            LOG.error("Failed to load index from file", e);
+            return SegmentLog.empty(directory);
+        }
+    }
+
+    /**
+     * Merges the live rows of all segments into the embedding store the first time the store is needed
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
             try {
-                String json = Files.readString(INDEX_FILE_PATH);
-                if (!json.isEmpty()) {
-                    InMemoryEmbeddingStore.fromJson(json);
+                loadSegments();
+            } finally {
+                loaded = true;
+            }
+        }
+    }
+
+    private void loadSegments() {
+        if (segmentLog.size() == 0) {
+            return;
+        }
+        List<SegmentLog.Segment> segments;
+        try {
+            segments = segmentLog.openSegments();
+        } catch (IOException e) {
+            LOG.error("Failed to load index segments, rebuilding the index", e);
+            try {
+                segmentLog.clear();
+            } catch (IOException ignored) {
+                // The next save starts a new log either way
+            }
+            return;
+        }
+        HnswIndex.Persisted graph = HnswIndex.read(graphFilePath, GRAPH_PARAMS);
+        if (graph == null) {
+            LOG.info("No matching HNSW graph on disk, rebuilding it from the vectors");
+        }
+        List<BinaryIndexFile> files = new ArrayList<>();
+        List<BitSet> removed = new ArrayList<>();
+        for (SegmentLog.Segment segment : segments) {
+            files.add(segment.file);
+            removed.add(segment.removed);
+        }
+        embeddingStore.load(files, removed, graph);
+        for (IndexManifest.DocumentEntry entry : IndexManifest.load(manifestFilePath).getDocuments()) {
+            documentStates.putIfAbsent(entry.getPath(), DocumentState.INDEXED);
+        }
+        for (SegmentLog.Segment segment : segments) {
+            for (int i = 0; i < segment.file.size(); i++) {
+                if (!segment.removed.get(i)) {
+                    lexicalIndex.add(segment.file.id(i), segment.file.segment(i));
                 }
-            } catch (IOException e) {
-                LOG.error("Failed to load index from file", e);
             }
         }
+        // The store keeps the segments mapped, they hold the full-precision vectors
+        publishSnapshot();
+        LOG.info("Loaded " + embeddingStore.size() + " segments from " + segments.size() + " index segment files");
     }
 
     /**
-     * Gets the embedding store instance
-     * 
-     * @return the embedding store instance
+     * Takes a reference to the current index snapshot. Never blocks on indexing; the caller
+     * must {@link IndexSnapshot#release() release} it when the search is done.
+     *
+     * @return the most recently published snapshot
      */
-    public static EmbeddingStore<TextSegment> getEmbeddingStore() {
-        return EMBEDDING_STORE;
+    public IndexSnapshot acquireSnapshot() {
+        ensureLoaded();
+        while (true) {
+            IndexSnapshot snapshot = currentSnapshot.get();
+            // Fails only if the snapshot was replaced and released in between, so just retry
+            if (snapshot.tryAcquire()) {
+                return snapshot;
+            }
+        }
     }
 
     /**
-     * Creates an instance of AllMiniLmL6V2QuantizedEmbeddingModel
-     * 
-     * @return the embedding model instance
+     * Publishes a view of the working store as the new snapshot and releases the previous one.
+     * The view shares the store's arrays, so publishing costs little more than copying the tombstones.
+     */
+    private void publishSnapshot() {
+        synchronized (publishLock) {
+            IndexSnapshot next = new IndexSnapshot(SNAPSHOT_VERSION.incrementAndGet(), embeddingStore.view());
+            currentSnapshot.getAndSet(next).release();
+            lastPublishMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gets the keyword index that mirrors the embedding store.
+     * Segments appear here as soon as they are parsed, before their embeddings are computed.
+     *
+     * @return the lexical index instance
      */
-    private static EmbeddingModel createEmbeddingModel() {
-        ClassLoader cl = SimpleRagIndexer.class.getClassLoader();
-        ClassLoader original = Thread.currentThread().getContextClassLoader();
+    public LexicalIndex getLexicalIndex() {
+        ensureLoaded();
+        return lexicalIndex;
+    }
+
+    /**
+     * Reports which documents can currently be found by search.
+     * A document counts as indexed once its embeddings are in the store; while it is being
+     * replaced, its previous version keeps it covered.
+     *
+     * @return the current coverage
+     */
+    public IndexCoverage getCoverage() {
+        ensureLoaded();
+        Set<String> indexed = new HashSet<>();
+        Set<String> keywordOnly = new HashSet<>();
+        Set<String> pending = new HashSet<>();
+        for (Map.Entry<String, DocumentState> entry : documentStates.entrySet()) {
+            String fileName = Paths.get(entry.getKey()).getFileName().toString();
+            switch (entry.getValue()) {
+                case INDEXED:
+                    indexed.add(fileName);
+                    break;
+                case KEYWORD_ONLY:
+                    keywordOnly.add(fileName);
+                    break;
+                default:
+                    pending.add(fileName);
+            }
+        }
+        return new IndexCoverage(indexed, keywordOnly, pending, indexing);
+    }
+
+    /**
+     * Gets the embedding cache, reading it from disk on first use
+     *
+     * @return the embedding cache instance
+     */
+    private static synchronized EmbeddingCache getEmbeddingCache() {
+        if (embeddingCache == null) {
+            embeddingCache = EmbeddingCache.load(EMBEDDING_CACHE_PATH, EmbeddingExecutor.MODEL_ID,
+                    EMBEDDING_CACHE_MAX_ENTRIES);
+        }
+        return embeddingCache;
+    }
+
+    /**
+     * Gets the shared embedding executor, starting its replicas on first use
+     *
+     * @return the embedding executor instance
+     */
+    private static synchronized EmbeddingExecutor getEmbeddingExecutor() {
+        if (embeddingExecutor == null) {
+            // Replicas open sessions of their own; waiting for the query model keeps the two loads
+            // from competing for the disk and the CPU at startup
+            EmbeddingModelService.getInstance().awaitModel();
+            embeddingExecutor = EmbeddingExecutor.fromSystemProperties(THROTTLE);
+        }
+        return embeddingExecutor;
+    }
+
+    /**
+     * @return true while an indexing run is in progress
+     */
+    public boolean isIndexing() {
+        return indexing;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Pauses or resumes the running indexing. A paused run keeps its place: documents already
+     * in the pipeline wait before their next stage, nothing is thrown away.
+     *
+     * @param paused true to pause, false to resume
+     */
+    public void setPaused(boolean paused) {
+        synchronized (pauseLock) {
+            this.paused = paused;
+            pauseLock.notifyAll();
+        }
+        LOG.info(paused ? "Indexing paused" : "Indexing resumed");
+    }
+
+    /**
+     * Reads the content hashes recorded in the manifest
+     *
+     * @return content hash by absolute document path
+     */
+    public Map<String, String> getContentHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        for (IndexManifest.DocumentEntry entry : IndexManifest.load(manifestFilePath).getDocuments()) {
+            hashes.put(entry.getPath(), entry.getContentHash());
+        }
+        return hashes;
+    }
+
+    /**
+     * Copies the saved index files into another directory, e.g. to start the index of a changed
+     * material set from this one. Waits for a running indexing to finish first.
+     *
+     * @param target the directory to copy to
+     * @throws IOException if a file cannot be copied
+     */
+    public void copyIndexFilesTo(Path target) throws IOException {
+        indexLock.lock();
+        try {
+            segmentLog.copyTo(target);
+            copySideFiles(directory, target);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the index files of a directory that no indexer has open; missing files are skipped
+     */
+    static void copyIndexFiles(Path source, Path target) throws IOException {
+        SegmentLog.copyFiles(source, target);
+        copySideFiles(source, target);
+    }
+
+    private static void copySideFiles(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        for (String name : new String[]{GRAPH_FILE_NAME, MANIFEST_FILE_NAME,
+                MANIFEST_FILE_NAME + IndexManifest.JOURNAL_SUFFIX}) {
+            Path file = source.resolve(name);
+            if (Files.isRegularFile(file)) {
+                Files.copy(file, target.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                // A journal left in the target would be replayed over the copied manifest
+                Files.deleteIfExists(target.resolve(name));
+            }
+        }
+    }
+
+    /**
+     * Mounts the documents of a prebuilt index bundle whose content matches local materials
+     * byte for byte, so they need neither parsing nor embedding. Materials the bundle does not
+     * cover, or that are already indexed, are left to {@link #index}.
+     * <p>
+     * The index directory is keyed by the content of all materials, so once a bundle was mounted
+     * here, mounting the same bundle file again finds nothing new; the manifest records it and
+     * later calls return without extracting the bundle or hashing the materials.
+     *
+     * @param bundlePath the bundle file
+     * @param materials the complete list of current course materials
+     * @return the number of documents taken from the bundle
+     */
+    public int mountBundle(Path bundlePath, List<CourseMaterial> materials) {
+        indexLock.lock();
+        try {
+            IndexManifest manifest = IndexManifest.load(manifestFilePath);
+            String stamp = bundleStamp(bundlePath);
+            if (stamp.equals(manifest.getBundleStamp())) {
+                LOG.info("Index bundle " + bundlePath + " is already mounted");
+                return 0;
+            }
+            return mountBundle(bundlePath, materials, manifest, stamp);
+        } catch (IOException e) {
+            LOG.warn("Failed to mount index bundle " + bundlePath + ", indexing locally", e);
+            return 0;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Identifies a bundle file as mounted into this index directory
+     */
+    private String bundleStamp(Path bundlePath) throws IOException {
+        return directory.getFileName() + ":" + Files.size(bundlePath) + ":"
+                + Files.getLastModifiedTime(bundlePath).toMillis();
+    }
+
+    private int mountBundle(Path bundlePath, List<CourseMaterial> materials, IndexManifest manifest,
+                            String stamp) throws IOException {
+        try (IndexBundle bundle = IndexBundle.open(bundlePath)) {
+            if (bundle == null) {
+                return 0;
+            }
+            ensureLoaded();
+            if (embeddingStore.size() > 0 && embeddingStore.dimension() != bundle.getDimension()) {
+                LOG.warn("Index bundle has dimension " + bundle.getDimension() + ", ignoring it");
+                return 0;
+            }
+            BinaryIndexFile index = bundle.getIndex();
+            Set<String> idsInUse = manifest.getAllChunkIds();
+            int mounted = 0;
+            for (CourseMaterial material : materials) {
+                String filePath = material.getFile().getAbsolutePath();
+                String fileName = material.getFile().getName();
+                String contentHash = IndexManifest.hashFile(material.getFile());
+                IndexManifest.DocumentEntry previous = manifest.get(filePath);
+                if (previous != null && previous.matches(contentHash, CHUNK_SIZE, CHUNK_OVERLAP, TEXT_VERSION)) {
+                    continue;
+                }
+                IndexManifest.DocumentEntry bundled = bundle.findDocument(contentHash);
+                if (bundled == null || !bundled.matches(contentHash, CHUNK_SIZE, CHUNK_OVERLAP, TEXT_VERSION)) {
+                    continue;
+                }
+                // A second copy of the same file cannot take the ids of the first, it is indexed locally
+                List<String> previousIds = previous == null ? Collections.emptyList() : previous.getChunkIds();
+                boolean taken = false;
+                for (String id : bundled.getChunkIds()) {
+                    if (idsInUse.contains(id) && !previousIds.contains(id)) {
+                        taken = true;
+                        break;
+                    }
+                }
+                if (taken) {
+                    continue;
+                }
+
+                List<Embedding> embeddings = new ArrayList<>(bundled.getChunkIds().size());
+                List<TextSegment> segments = new ArrayList<>(bundled.getChunkIds().size());
+                for (String id : bundled.getChunkIds()) {
+                    int row = bundle.row(id);
+                    if (row < 0) {
+                        break;
+                    }
+                    TextSegment segment = index.segment(row);
+                    // The bundle may have been built from a copy with another file name
+                    if (!fileName.equals(segment.metadata().getString("file_name"))) {
+                        segment = TextSegment.from(segment.text(), segment.metadata().copy().put("file_name", fileName));
+                    }
+                    embeddings.add(Embedding.from(index.vector(row)));
+                    segments.add(segment);
+                }
+                if (segments.size() != bundled.getChunkIds().size()) {
+                    LOG.warn("Index bundle is missing segments of " + bundled.getFileName() + ", indexing it locally");
+                    continue;
+                }
+
+                if (previous != null) {
+                    removeFromStore(previous.getChunkIds());
+                    lexicalIndex.removeAll(previous.getChunkIds());
+                }
+                addToStore(bundled.getChunkIds(), embeddings, segments);
+                for (int i = 0; i < segments.size(); i++) {
+                    lexicalIndex.add(bundled.getChunkIds().get(i), segments.get(i));
+                }
+                manifest.put(new IndexManifest.DocumentEntry(filePath, fileName, contentHash,
+                        CHUNK_SIZE, CHUNK_OVERLAP, TEXT_VERSION, bundled.getChunkIds()));
+                idsInUse.addAll(bundled.getChunkIds());
+                documentStates.put(filePath, DocumentState.INDEXED);
+                mounted++;
+            }
+            if (mounted > 0) {
+                saveIndex();
+            }
+            manifest.setBundleStamp(stamp);
+            manifest.save(manifestFilePath);
+            if (mounted > 0) {
+                publishSnapshot();
+            }
+            LOG.info("Mounted " + mounted + " of " + bundle.getDocumentCount() + " documents from index bundle "
+                    + bundlePath);
+            return mounted;
+        }
+    }
+
+    /**
+     * Packs the saved index into a bundle that other machines can mount
+     *
+     * @param target the bundle file to write
+     * @return the number of documents in the bundle
+     * @throws IOException if there is no saved index or the bundle cannot be written
+     */
+    public int exportBundle(Path target) throws IOException {
+        indexLock.lock();
         try {
-            Thread.currentThread().setContextClassLoader(cl);
-            return new AllMiniLmL6V2QuantizedEmbeddingModel();
+            // Between runs the store holds exactly what the saved manifest describes
+            ensureLoaded();
+            if (segmentLog.size() == 0) {
+                throw new IOException("There is no saved index to export");
+            }
+            // The bundle carries one merged file instead of the segments
+            Path merged = Files.createTempFile("jedai-export", ".bin");
+            try {
+                PackedEmbeddingStore.Snapshot snapshot = embeddingStore.snapshot();
+                BinaryIndexFile.write(merged, snapshot.ids, snapshot.vectors, snapshot.segments,
+                        segmentLog.getGeneration());
+                return IndexBundle.write(target, merged, IndexManifest.load(manifestFilePath),
+                        embeddingStore.dimension());
+            } finally {
+                Files.deleteIfExists(merged);
+            }
         } finally {
-            Thread.currentThread().setContextClassLoader(original);
+            indexLock.unlock();
         }
     }
 
     /**
-     * Indexes a list of course materials
+     * Incrementally indexes a list of course materials.
+     * Documents whose content hash, chunker parameters and cleaning rules match the manifest are
+     * skipped, changed documents have their segments replaced and vanished documents are removed.
+     * <p>
+     * Changed documents flow through a parse → clean → split → embed → store pipeline. Every
+     * stage has its own threads and hands documents to the next one through a bounded queue, so
+     * PDF parsing overlaps with embedding while only a few documents are held in memory at once.
+     * The store stage runs on the calling thread and is the only writer of the store and manifest.
      * 
-     * @param materials the list of course materials to index
+     * @param materials the complete list of current course materials
      * @return indexing statistics
      */
     @Override
     public IndexStats index(List<CourseMaterial> materials) {
-        LOG.info("index materials：" + materials.size());
+        return index(materials, null, null);
+    }
 
-        long startTime = System.currentTimeMillis();
+    /**
+     * Incrementally indexes a list of course materials, reporting per-document progress.
+     * <p>
+     * When the indicator is cancelled, documents that were already stored are saved together
+     * with their manifest entries and everything else is left as it was, so the next run only
+     * processes the documents this one did not get to.
+     * <p>
+     * With {@code affectedPaths} only those documents are hashed and, if changed, re-indexed;
+     * the other materials are taken as they are in the manifest. Documents missing from
+     * {@code materials} are removed either way. Runs never overlap, a second one waits.
+     *
+     * @param materials the complete list of current course materials
+     * @param affectedPaths absolute paths of the documents to check, or null to check all
+     * @param indicator receives progress and is polled for cancellation, may be null
+     * @return indexing statistics
+     */
+    public IndexStats index(List<CourseMaterial> materials, Set<String> affectedPaths, ProgressIndicator indicator) {
+        LOG.info("index materials：" + materials.size()
+                + (affectedPaths != null ? ", affected: " + affectedPaths.size() : ""));
+
+        indexLock.lock();
+        try {
+            long startTime = System.currentTimeMillis();
+            ensureLoaded();
+            indexing = true;
+            // The store loop inserts into the graph on this thread, so it yields to the IDE like the workers
+            Thread current = Thread.currentThread();
+            int priority = current.getPriority();
+            current.setPriority(Thread.MIN_PRIORITY);
+            try {
+                return runIndex(materials, affectedPaths, indicator, startTime);
+            } finally {
+                current.setPriority(priority);
+                indexing = false;
+                setPaused(false);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
 
-        List<TextSegment> allSegments = new ArrayList<>();
+    private IndexStats runIndex(List<CourseMaterial> materials, Set<String> affectedPaths,
+                                ProgressIndicator indicator, long startTime) {
+
+        IndexManifest manifest = IndexManifest.load(manifestFilePath);
+        if (!manifest.isEmpty() && !segmentLog.exists()) {
+            // Vectors are gone but the manifest survived, so nothing in it can be trusted
+            LOG.warn("Index file missing, discarding stale manifest");
+            manifest.clear();
+        }
+
+        int added = 0;
+        int updated = 0;
+        int removed = 0;
+        int unchanged = 0;
+        int cacheHits = 0;
+        int cacheMisses = 0;
+
+        // Drop documents that are no longer part of the material set
+        Set<String> currentPaths = new HashSet<>();
         for (CourseMaterial material : materials) {
-            Path path = material.getFile().toPath();
-            String fileName = material.getFile().getName();
-            List<TextSegment> segments = parseAndSplit(material, path, fileName);
-            allSegments.addAll(segments);
+            currentPaths.add(material.getFile().getAbsolutePath());
+        }
+        int relocated = relocateDocuments(manifest, materials, currentPaths);
+        for (IndexManifest.DocumentEntry entry : new ArrayList<>(manifest.getDocuments())) {
+            if (!currentPaths.contains(entry.getPath())) {
+                removeFromStore(entry.getChunkIds());
+                lexicalIndex.removeAll(entry.getChunkIds());
+                manifest.remove(entry.getPath());
+                documentStates.remove(entry.getPath());
+                removed++;
+                LOG.info("Removed document from index: " + entry.getFileName());
+            }
+        }
+        if (removed > 0) {
+            publishSnapshot();
         }
 
-        EmbeddingModel embeddingModel = createEmbeddingModel();
-        List<Embedding> embeddings = embeddingModel.embedAll(allSegments).content();
+        // The source queue only holds lightweight job handles, so it is filled up front
+        BlockingQueue<IngestJob> sourceQueue = new LinkedBlockingQueue<>();
+        Set<String> idsInUse = manifest.getAllChunkIds();
+        for (CourseMaterial material : materials) {
+            if (affectedPaths != null && !affectedPaths.contains(material.getFile().getAbsolutePath())) {
+                unchanged++;
+                continue;
+            }
+            IngestJob job = new IngestJob(material, manifest.get(material.getFile().getAbsolutePath()));
+            job.idsInUse = idsInUse;
+            // Documents with a previous version stay searchable until the new one replaces it
+            documentStates.put(job.filePath, job.previous != null ? DocumentState.INDEXED : DocumentState.PENDING);
+            sourceQueue.add(job);
+        }
+        int jobCount = sourceQueue.size();
+        sourceQueue.add(IngestJob.POISON);
 
-        EMBEDDING_STORE.removeAll();
-        EMBEDDING_STORE.addAll(embeddings, allSegments);
+        long throttleWaitBefore = THROTTLE.getWaitMillis();
+        BlockingQueue<IngestJob> cleanQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        BlockingQueue<IngestJob> splitQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        BlockingQueue<IngestJob> embedQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        BlockingQueue<IngestJob> storeQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        List<PipelineStage<IngestJob>> stages = new ArrayList<>();
+        stages.add(new PipelineStage<>("parse", PARSE_THREADS, sourceQueue, cleanQueue, IngestJob.POISON,
+                interruptible(throttled(SimpleRagIndexer::parseStage), indicator), SimpleRagIndexer::failStage));
+        stages.add(new PipelineStage<>("clean", 1, cleanQueue, splitQueue, IngestJob.POISON,
+                interruptible(SimpleRagIndexer::cleanStage, indicator), SimpleRagIndexer::failStage));
+        stages.add(new PipelineStage<>("split", 1, splitQueue, embedQueue, IngestJob.POISON,
+                interruptible(this::splitStage, indicator), SimpleRagIndexer::failStage));
+        stages.add(new PipelineStage<>("embed", EMBED_THREADS, embedQueue, storeQueue, IngestJob.POISON,
+                interruptible(SimpleRagIndexer::embedStage, indicator), SimpleRagIndexer::failStage));
+        for (PipelineStage<IngestJob> stage : stages) {
+            stage.start();
+        }
+
+        if (indicator != null) {
+            indicator.setIndeterminate(false);
+            indicator.setFraction(0);
+        }
 
-        // Persist to file
+        List<String> unpublished = new ArrayList<>();
+        int skipped = 0;
+        int stored = 0;
+        long storeNanos = 0;
+        int storeMaxQueue = 0;
         try {
-            Files.writeString(INDEX_FILE_PATH, EMBEDDING_STORE.serializeToJson());
-        } catch (IOException e) {
-            LOG.error("Failed to save index to file", e);
+            while (true) {
+                storeMaxQueue = Math.max(storeMaxQueue, storeQueue.size());
+                IngestJob job = storeQueue.take();
+                if (job == IngestJob.POISON) {
+                    break;
+                }
+                long storeStart = System.nanoTime();
+                if (indicator != null) {
+                    indicator.setText2(job.fileName);
+                }
+                if (job.unchanged) {
+                    unchanged++;
+                } else if (job.failure != null || job.skipped) {
+                    if (job.failure != null) {
+                        LOG.error("Failed to index document: " + job.fileName, job.failure);
+                    } else {
+                        skipped++;
+                    }
+                    // Keep serving the previous version of the document
+                    if (job.chunkIds != null) {
+                        List<String> newIds = new ArrayList<>(job.chunkIds);
+                        if (job.previous != null) {
+                            newIds.removeAll(job.previous.getChunkIds());
+                        }
+                        lexicalIndex.removeAll(newIds);
+                    }
+                    if (job.previous == null) {
+                        documentStates.remove(job.filePath);
+                    }
+                } else {
+                    if (job.previous != null) {
+                        removeFromStore(job.previous.getChunkIds());
+                        // Ids shared with the new version were already replaced in the split stage
+                        List<String> staleIds = new ArrayList<>(job.previous.getChunkIds());
+                        staleIds.removeAll(job.chunkIds);
+                        lexicalIndex.removeAll(staleIds);
+                        updated++;
+                    } else {
+                        added++;
+                    }
+                    addToStore(job.chunkIds, job.embeddings, job.segments);
+                    // Coverage only reports documents that a published snapshot contains
+                    unpublished.add(job.filePath);
+                    if (System.currentTimeMillis() - lastPublishMillis >= SNAPSHOT_INTERVAL_MS) {
+                        publishSnapshot();
+                        markIndexed(unpublished);
+                    }
+                    manifest.put(new IndexManifest.DocumentEntry(job.filePath, job.fileName, job.contentHash,
+                            CHUNK_SIZE, CHUNK_OVERLAP, TEXT_VERSION, job.chunkIds));
+                    cacheHits += job.cacheHits;
+                    cacheMisses += job.cacheMisses;
+                    LOG.info("Indexed document " + job.fileName + " (" + job.segments.size() + " segments)");
+                }
+                storeNanos += System.nanoTime() - storeStart;
+                stored++;
+                if (indicator != null) {
+                    indicator.setFraction((double) stored / jobCount);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Indexing interrupted, keeping the documents stored so far");
+            // Stop the stages rather than leave their workers blocked on full queues
+            for (PipelineStage<IngestJob> stage : stages) {
+                stage.shutdown(STAGE_SHUTDOWN_TIMEOUT_MS);
+            }
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.info("Indexing steps waited " + (THROTTLE.getWaitMillis() - throttleWaitBefore)
+                + " ms in total for the throttle");
+        boolean cancelled = isCanceled(indicator);
+        if (cancelled) {
+            LOG.info("Indexing cancelled, " + skipped + " documents are left for the next run");
+        }
+
+        // Persist to file; after a cancel this commits the documents stored so far
+        if (added + updated + removed + relocated > 0 || !segmentLog.exists()) {
+            try {
+                saveIndex();
+                manifest.save(manifestFilePath);
+                Files.createDirectories(EMBEDDING_CACHE_PATH.getParent());
+                getEmbeddingCache().save(EMBEDDING_CACHE_PATH);
+                // The text cache is shared, keep what any index on disk still refers to
+                PAGE_TEXT_CACHE.retainAll(IndexRegistry.liveContentHashes());
+            } catch (IOException e) {
+                LOG.error("Failed to save index to file", e);
+            }
+        }
+        if (added + updated > 0) {
+            // Published after saving, which may have compacted the working store
+            publishSnapshot();
+            markIndexed(unpublished);
         }
 
         long indexingTime = System.currentTimeMillis() - startTime;
 
-        return new IndexStats(materials.size(), allSegments.size(), indexingTime);
+        IndexStats stats = new IndexStats(materials.size(), manifest.getTotalChunks(), indexingTime,
+                added, updated, removed, unchanged);
+        stats.setEmbeddingCacheStats(cacheHits, cacheMisses);
+        List<IndexStats.StageStats> stageStats = new ArrayList<>();
+        for (PipelineStage<IngestJob> stage : stages) {
+            stageStats.add(stage.getStats());
+        }
+        stageStats.add(new IndexStats.StageStats("store", 1, stored, storeNanos / 1_000_000, storeMaxQueue));
+        stats.setStageStats(stageStats);
+        if (cancelled) {
+            stats.setCancelled(skipped);
+        }
+        return stats;
+    }
+
+    /**
+     * Moves manifest entries to the paths of the current materials when the same file, by name
+     * and content, is indexed under another path. A shared index is built from the slides of
+     * whichever project indexed first; other projects have their own copy of the same files.
+     *
+     * @return the number of relocated documents
+     */
+    private int relocateDocuments(IndexManifest manifest, List<CourseMaterial> materials, Set<String> currentPaths) {
+        Map<String, IndexManifest.DocumentEntry> vanishedByName = new HashMap<>();
+        for (IndexManifest.DocumentEntry entry : manifest.getDocuments()) {
+            if (!currentPaths.contains(entry.getPath())) {
+                vanishedByName.put(entry.getFileName(), entry);
+            }
+        }
+        int relocated = 0;
+        for (CourseMaterial material : materials) {
+            String filePath = material.getFile().getAbsolutePath();
+            if (vanishedByName.isEmpty()) {
+                break;
+            }
+            if (manifest.get(filePath) != null) {
+                continue;
+            }
+            IndexManifest.DocumentEntry entry = vanishedByName.get(material.getFile().getName());
+            try {
+                if (entry == null || !entry.getContentHash().equals(IndexManifest.hashFile(material.getFile()))) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // Indexed like any new document, which reports the error
+                continue;
+            }
+            vanishedByName.remove(entry.getFileName());
+            manifest.remove(entry.getPath());
+            manifest.put(new IndexManifest.DocumentEntry(filePath, entry.getFileName(), entry.getContentHash(),
+                    entry.getChunkSize(), entry.getChunkOverlap(), entry.getTextVersion(), entry.getChunkIds()));
+            documentStates.remove(entry.getPath());
+            documentStates.put(filePath, DocumentState.INDEXED);
+            relocated++;
+        }
+        return relocated;
+    }
+
+    private void markIndexed(List<String> filePaths) {
+        for (String filePath : filePaths) {
+            documentStates.put(filePath, DocumentState.INDEXED);
+        }
+        filePaths.clear();
+    }
+
+    /**
+     * Runs a stage only when the run is neither paused nor cancelled. After a cancel the remaining
+     * documents still travel to the store stage, marked as skipped, so it can undo their keyword
+     * entries; they then stay exactly as the manifest describes them.
+     */
+    private PipelineStage.Task<IngestJob> interruptible(PipelineStage.Task<IngestJob> task,
+                                                               ProgressIndicator indicator) {
+        return job -> {
+            if (!job.skipped && !awaitResume(indicator)) {
+                job.skipped = true;
+                job.pages = null;
+                job.segments = null;
+            }
+            if (!job.skipped) {
+                task.process(job);
+            }
+        };
+    }
+
+    /**
+     * Runs a CPU-heavy stage under the indexing throttle
+     */
+    private static PipelineStage.Task<IngestJob> throttled(PipelineStage.Task<IngestJob> task) {
+        return job -> {
+            THROTTLE.acquire();
+            long start = System.nanoTime();
+            try {
+                task.process(job);
+            } finally {
+                THROTTLE.release(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Blocks while indexing is paused
+     *
+     * @param indicator the progress indicator of the run, may be null
+     * @return false if the run was cancelled
+     */
+    private boolean awaitResume(ProgressIndicator indicator) {
+        synchronized (pauseLock) {
+            if (paused && indicator != null) {
+                indicator.setText2("Paused");
+            }
+            while (paused && !isCanceled(indicator)) {
+                try {
+                    pauseLock.wait(PAUSE_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !isCanceled(indicator);
+    }
+
+    private static boolean isCanceled(ProgressIndicator indicator) {
+        return indicator != null && indicator.isCanceled();
+    }
+
+    /**
+     * Hashes the file and, unless the manifest entry is still valid, gets the text of each page,
+     * from the page text cache when this exact file content was extracted before
+     */
+    private static void parseStage(IngestJob job) throws IOException {
+        job.contentHash = IndexManifest.hashFile(job.material.getFile());
+        if (job.previous != null && job.previous.matches(job.contentHash, CHUNK_SIZE, CHUNK_OVERLAP, TEXT_VERSION)) {
+            job.unchanged = true;
+            return;
+        }
+        List<String> cachedPages = PAGE_TEXT_CACHE.get(job.contentHash);
+        if (cachedPages != null) {
+            job.pages = new ArrayList<>(cachedPages.size());
+            for (int i = 0; i < cachedPages.size(); i++) {
+                job.pages.add(new PageText(i + 1, cachedPages.get(i)));
+            }
+            return;
+        }
+        job.pages = parsePages(job.material);
+        List<String> pageTexts = new ArrayList<>(job.pages.size());
+        for (PageText page : job.pages) {
+            pageTexts.add(page.text);
+        }
+        PAGE_TEXT_CACHE.put(job.contentHash, pageTexts);
+    }
+
+    private static void cleanStage(IngestJob job) {
+        if (job.pages == null) {
+            return;
+        }
+        for (PageText page : job.pages) {
+            page.text = cleanText(page.text);
+        }
+    }
+
+    /**
+     * Splits pages into segments and makes them searchable by keyword right away
+     */
+    private void splitStage(IngestJob job) {
+        if (job.pages == null) {
+            return;
+        }
+        job.segments = split(job.pages, job.fileName);
+        job.pages = null;
+        job.chunkIds = chunkIds(job, job.segments.size());
+        // Keyword search can serve the new text while the embeddings are being computed
+        for (int i = 0; i < job.segments.size(); i++) {
+            lexicalIndex.add(job.chunkIds.get(i), job.segments.get(i));
+        }
+        if (job.previous == null) {
+            documentStates.put(job.filePath, DocumentState.KEYWORD_ONLY);
+        }
+    }
+
+    /**
+     * Derives the segment ids of a document from its path. The ids can still belong to another
+     * document, a copy of the same file that was first indexed at this path and then relocated;
+     * the key then gets a counter until the ids are free.
+     */
+    private static List<String> chunkIds(IngestJob job, int count) {
+        String key = job.filePath;
+        for (int attempt = 1; ; attempt++) {
+            List<String> ids = new ArrayList<>(count);
+            boolean taken = false;
+            for (int i = 0; i < count; i++) {
+                String id = IndexManifest.chunkId(key, job.contentHash, i);
+                if (job.idsInUse.contains(id) && (job.previous == null || !job.previous.getChunkIds().contains(id))) {
+                    taken = true;
+                }
+                ids.add(id);
+            }
+            if (!taken) {
+                return ids;
+            }
+            key = job.filePath + '#' + attempt;
+        }
     }
 
     /**
-     * Parses and splits course materials into text segments
+     * Takes vectors of already known text from the cache and embeds only the rest
+     */
+    private static void embedStage(IngestJob job) {
+        if (job.segments == null) {
+            return;
+        }
+        EmbeddingCache cache = getEmbeddingCache();
+        Embedding[] embeddings = new Embedding[job.segments.size()];
+        List<TextSegment> misses = new ArrayList<>();
+        List<Integer> missSlots = new ArrayList<>();
+        for (int i = 0; i < embeddings.length; i++) {
+            float[] cached = cache.get(job.segments.get(i).text());
+            if (cached != null) {
+                embeddings[i] = Embedding.from(cached);
+            } else {
+                misses.add(job.segments.get(i));
+                missSlots.add(i);
+            }
+        }
+        job.cacheHits = embeddings.length - misses.size();
+        job.cacheMisses = misses.size();
+
+        if (!misses.isEmpty()) {
+            List<Embedding> computed = getEmbeddingExecutor().embedAll(misses);
+            for (int i = 0; i < computed.size(); i++) {
+                embeddings[missSlots.get(i)] = computed.get(i);
+                cache.put(misses.get(i).text(), computed.get(i).vector());
+            }
+        }
+        job.embeddings = Arrays.asList(embeddings);
+    }
+
+    private static void failStage(IngestJob job, Throwable e) {
+        if (job.failure == null) {
+            job.failure = e;
+        }
+        // Later stages see no work left for this document
+        job.pages = null;
+        job.segments = null;
+    }
+
+    /**
+     * Removes segments from the store, remembering them for the next commit
+     */
+    private void removeFromStore(List<String> ids) {
+        embeddingStore.removeAll(ids);
+        ids.forEach(unsavedAdds::remove);
+        unsavedRemovals.addAll(ids);
+    }
+
+    /**
+     * Adds segments to the store, remembering them for the next commit
+     */
+    private void addToStore(List<String> ids, List<Embedding> embeddings, List<TextSegment> segments) {
+        embeddingStore.addAll(ids, embeddings, segments);
+        for (String id : ids) {
+            // A re-added id moves to the end of the store, keep the same order here
+            unsavedAdds.remove(id);
+            unsavedAdds.add(id);
+        }
+    }
+
+    /**
+     * Commits the segments added and removed since the last save to the segment log. Only the
+     * changed segments are written; the HNSW graph is rewritten only once it lags far enough
+     * behind, until then loading repairs it.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    private void saveIndex() throws IOException {
+        Files.createDirectories(directory);
+        BinaryIndexFile segment = segmentLog.commit(unsavedRemovals, embeddingStore.snapshot(unsavedAdds));
+        unsavedAdds.clear();
+        unsavedRemovals.clear();
+        // The store now reads the full vectors of the saved rows from the segment instead of the heap
+        if (segment != null) {
+            embeddingStore.attach(segment);
+        }
+        embeddingStore.compactIfNeeded();
+        embeddingStore.writeGraphIfStale(graphFilePath);
+        Files.deleteIfExists(LEGACY_INDEX_FILE_PATH);
+        segmentLog.compactInBackground();
+    }
+
+    /**
+     * Extracts the text of a course material page by page
      * 
      * @param material the course material
-     * @param path the file path
+     * @return the pages in order, a text file is a single page
+     * @throws IOException if the file cannot be read
+     */
+    private static List<PageText> parsePages(CourseMaterial material) throws IOException {
+        List<PageText> pages = new ArrayList<>();
+        CourseMaterial.MaterialType type = material.getType();
+        switch (type) {
+            case PDF:
+                try (PDDocument pdfDocument = PDDocument.load(material.getFile())) {
+                    // One walk over the page tree
+                    PageTextStripper stripper = new PageTextStripper(
+                            (page, pageText) -> pages.add(new PageText(page, pageText)));
+                    stripper.extractPages(pdfDocument);
+                }
+                break;
+            case TEXT:
+                Document textDoc = loadDocument(material.getFile().toPath(), new TextDocumentParser());
+                pages.add(new PageText(1, textDoc.text()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported material type: " + type);
+        }
+        return pages;
+    }
+
+    /**
+     * Normalizes extracted text: unifies line breaks, drops control characters and non-breaking
+     * spaces, trims trailing blanks and collapses runs of empty lines.
+     * Changing these rules requires bumping {@link #TEXT_VERSION}.
+     */
+    private static String cleanText(String text) {
+        String cleaned = text.replace("\r\n", "\n").replace('\r', '\n').replace('\u00A0', ' ');
+        cleaned = CONTROL_CHARS.matcher(cleaned).replaceAll("");
+        cleaned = TRAILING_BLANKS.matcher(cleaned).replaceAll("");
+        return BLANK_LINES.matcher(cleaned).replaceAll("\n\n");
+    }
+
+    /**
+     * Splits page texts into text segments
+     * 
+     * @param pages the cleaned page texts
      * @param fileName the file name
      * @return list of text segments
      */
-    private List<TextSegment> parseAndSplit(CourseMaterial material, Path path, String fileName) {
+    private static List<TextSegment> split(List<PageText> pages, String fileName) {
         List<TextSegment> segments = new ArrayList<>();
-        CourseMaterial.MaterialType type = material.getType();
-        DocumentSplitter splitter = DocumentSplitters.recursive(500, 100); // 100 characters overlap allowed
-
-        try {
-            switch (type) {
-                case PDF:
-                    try (PDDocument pdfDocument = PDDocument.load(material.getFile())) {
-                        PDFTextStripper stripper = new PDFTextStripper();
-                        for (int page = 1; page <= pdfDocument.getNumberOfPages(); page++) {
-                            stripper.setStartPage(page);
-                            stripper.setEndPage(page);
-                            String pageText = stripper.getText(pdfDocument);
-                            if (!pageText.trim().isEmpty()) {
-                                Document pageDoc = new Document(pageText);
-                                List<TextSegment> pageSegments = splitter.split(pageDoc);
-                                for (TextSegment seg : pageSegments) {
-                                    Metadata metadata = seg.metadata()
-                                            .add("file_name", fileName)
-                                            .add("page_number", page)
-                                            .add("page_range", page + "-" + page);
-                                    segments.add(TextSegment.from(seg.text(), metadata));
-                                }
-                            }
-                        }
-                    }
-                    break;
-                case TEXT:
-                    Document textDoc = loadDocument(path, new TextDocumentParser());
-                    List<TextSegment> textSegments = splitter.split(textDoc);
-                    for (TextSegment seg : textSegments) {
-                        Metadata metadata = seg.metadata()
-                                .add("file_name", fileName)
-                                .add("page_number", 1)
-                                .add("page_range", "1-1");
-                        segments.add(TextSegment.from(seg.text(), metadata));
-                    }
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unsupported material type: " + type);
+        DocumentSplitter splitter = DocumentSplitters.recursive(CHUNK_SIZE, CHUNK_OVERLAP);
+        for (PageText pageText : pages) {
+            if (pageText.text.trim().isEmpty()) {
+                continue;
+            }
+            int page = pageText.page;
+            List<TextSegment> pageSegments = splitter.split(new Document(pageText.text));
+            for (TextSegment seg : pageSegments) {
+                Metadata metadata = seg.metadata()
+                        .add("file_name", fileName)
+                        .add("page_number", page)
+                        .add("page_range", page + "-" + page);
+                segments.add(TextSegment.from(seg.text(), metadata));
             }
-        } catch (IOException e) {
-            LOG.error("Failed to parse document: " + fileName, e);
         }
-
         return segments;
     }
 
+    private static class PageText {
+        final int page;
+        String text;
+
+        PageText(int page, String text) {
+            this.page = page;
+            this.text = text;
+        }
+    }
+
+    /**
+     * A document travelling through the ingestion pipeline, filled in stage by stage
+     */
+    private static class IngestJob {
+        static final IngestJob POISON = new IngestJob(null, null);
+
+        final CourseMaterial material;
+        final IndexManifest.DocumentEntry previous;
+        final String fileName;
+        final String filePath;
+        String contentHash;
+        boolean unchanged;
+        // Set when the run was cancelled before this document was done
+        boolean skipped;
+        List<PageText> pages;
+        List<TextSegment> segments;
+        List<String> chunkIds;
+        // Segment ids of all documents in the manifest when the run started, read-only
+        Set<String> idsInUse;
+        List<Embedding> embeddings;
+        int cacheHits;
+        int cacheMisses;
+        Throwable failure;
+
+        IngestJob(CourseMaterial material, IndexManifest.DocumentEntry previous) {
+            this.material = material;
+            this.previous = previous;
+            this.fileName = material == null ? null : material.getFile().getName();
+            this.filePath = material == null ? null : material.getFile().getAbsolutePath();
+        }
+    }
+
     /**
      * Checks if the index already exists
      * 
-     * @return true if the index file exists and is not empty, false otherwise
+     * @return true if the saved segments hold at least one live segment
      */
     @Override
     public boolean isIndexed() {
-        try {
-            return Files.exists(INDEX_FILE_PATH) && !Files.readString(INDEX_FILE_PATH).isEmpty();
-        } catch (IOException e) {
-            LOG.error("Failed to check index file", e);
-            return false;
-        }
+        return segmentLog.size() > 0;
     }
     
     /**
-     * Clears all index data
+     * Clears all index data. Waits for a running indexing to finish first.
      */
     @Override
     public void clearIndex() {
-        EMBEDDING_STORE.removeAll();
+        indexLock.lock();
         try {
-            Files.deleteIfExists(INDEX_FILE_PATH);
-        } catch (IOException e) {
-            LOG.error("Failed to delete index file", e);
+            synchronized (this) {
+                // Waits for a search that is loading the segments, and keeps later ones from loading them
+                loaded = true;
+            }
+            embeddingStore.removeAll();
+            unsavedAdds.clear();
+            unsavedRemovals.clear();
+            lexicalIndex.clear();
+            documentStates.clear();
+            publishSnapshot();
+            try {
+                segmentLog.clear();
+                Files.deleteIfExists(graphFilePath);
+                IndexManifest.delete(manifestFilePath);
+            } catch (IOException e) {
+                LOG.error("Failed to delete index file", e);
+            }
+            LOG.info("delete index");
+        } finally {
+            indexLock.unlock();
         }
-        LOG.info("delete index");
     }
-}
\ No newline at end of file
+}
@@ -1,17 +1,31 @@
 package com.github.ericufo.jedai.rag.impl;
 
+import com.github.ericufo.jedai.rag.IndexCoverage;
 import com.github.ericufo.jedai.rag.RagRetriever;
 import com.github.ericufo.jedai.rag.RetrievedChunk;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.model.embedding.onnx.allminilml6v2q.AllMiniLmL6V2QuantizedEmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
-import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Simple RAG retriever implementation for searching and retrieving relevant text chunks
@@ -19,53 +33,358 @@ import java.util.List;
 public class SimpleRagRetriever implements RagRetriever {
     private static final Logger LOG = Logger.getInstance(SimpleRagRetriever.class);
 
-    private static final EmbeddingStore<TextSegment> EMBEDDING_STORE = SimpleRagIndexer.getEmbeddingStore();
-    private static final EmbeddingModel EMBEDDING_MODEL = createEmbeddingModel();
+    // Below this many segments an exact scan is both fast and perfectly accurate
+    private static final int ANN_MIN_CORPUS_SIZE = Integer.getInteger("jedai.rag.annMinCorpusSize", 10_000);
+    private static final int EF_SEARCH = HnswIndex.Params.fromSystemProperties().efSearch;
+    // Approximate search above that size: "hnsw" walks the graph, "binary" uses the sign-code prefilter,
+    // "routed" only scores the pages of the lectures whose centroids are closest to the query
+    private static final String ANN_STRATEGY = System.getProperty("jedai.rag.ann", "hnsw");
+    private static final int ROUTE_DOCUMENTS = Integer.getInteger("jedai.rag.route.documents", 3);
+    private static final int ROUTE_PAGES = Integer.getInteger("jedai.rag.route.pages", 32);
+    // Share of the corpus the sign-code prefilter keeps; about 1% keeps recall@5 at 0.99
+    private static final double PREFILTER_FRACTION =
+            Double.parseDouble(System.getProperty("jedai.rag.binary.candidateFraction", "0.01"));
+    private static final double THRESHOLD = 0.80;
+    // Reciprocal rank fusion constant, damps the influence of the very first ranks
+    private static final int RRF_K = 60;
+    // A keyword hit only counts if it matches more than this share of the query terms, so a question
+    // that shares one common word with the slides still takes the general-knowledge path
+    private static final double MIN_KEYWORD_COVERAGE =
+            Double.parseDouble(System.getProperty("jedai.rag.keyword.minCoverage", "0.5"));
+    private static final int CACHED_EMBEDDINGS = Integer.getInteger("jedai.rag.queryCache.embeddings", 256);
+    private static final int CACHED_RESULTS = Integer.getInteger("jedai.rag.queryCache.results", 128);
+
+    private final Supplier<SimpleRagIndexer> indexer;
+    private final QueryCache queryCache = new QueryCache(CACHED_EMBEDDINGS, CACHED_RESULTS);
 
     /**
-     * Creates an instance of AllMiniLmL6V2QuantizedEmbeddingModel
-     * 
-     * @return the embedding model instance
+     * Creates a retriever over the index the project is currently bound to, which changes
+     * when the course materials change
+     *
+     * @param project the current project
      */
-    private static EmbeddingModel createEmbeddingModel() {
-        ClassLoader cl = SimpleRagIndexer.class.getClassLoader();
-        ClassLoader original = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(cl);
-            return new AllMiniLmL6V2QuantizedEmbeddingModel();
-        } finally {
-            Thread.currentThread().setContextClassLoader(original);
-        }
+    public SimpleRagRetriever(Project project) {
+        this.indexer = () -> ProjectIndexService.getInstance(project).getIndexer();
+    }
+
+    /**
+     * Creates a retriever over a fixed index
+     *
+     * @param indexer the index to search
+     */
+    public SimpleRagRetriever(SimpleRagIndexer indexer) {
+        this.indexer = () -> indexer;
     }
 
     /**
-     * Searches for relevant text chunks based on the query
+     * Searches for relevant text chunks based on the query.
+     * Vector and BM25 keyword rankings are merged with reciprocal rank fusion, so exact
+     * identifiers such as {@code NullPointerException} are found even when their embedding
+     * similarity falls below the threshold. Until the embedding model has finished loading,
+     * only the keyword ranking is used, so a search never waits for the model.
+     * Repeated queries reuse their embedding and, while the index snapshot is unchanged, their results.
      * 
      * @param query the search query string
      * @param k the number of top results to return
-     * @return list of retrieved chunks with relevance scores
+     * @return list of retrieved chunks; the score is the reciprocal rank fusion value, the sum of
+     *         1 / (60 + rank) over the rankings that contain the chunk (about 0.016 to 0.033), not a similarity
      */
     @Override
     public List<RetrievedChunk> search(String query, int k) {
-        LOG.info("index query：" + query + "，return top-" + k);
+        return searchAll(List.of(query), k, null).get(0);
+    }
+
+    /**
+     * Searches several queries at once: the queries missing from the cache are embedded in one
+     * model call and, below the approximate search threshold, scored in one pass over the vectors
+     *
+     * @param queries the search query strings
+     * @param k the number of top results to return per query
+     * @return the retrieved chunks of each query, in query order
+     */
+    @Override
+    public List<List<RetrievedChunk>> searchBatch(List<String> queries, int k) {
+        return searchAll(queries, k, null);
+    }
+
+    /**
+     * Searches on the given executor. Cancelling the future stops the search before its next step
+     * (keyword search, query embedding, vector search); the thread is never interrupted, so
+     * index files and the model are not disturbed. At the deadline the future completes with the
+     * best results found so far: the keyword ranking if the vector search has not finished,
+     * otherwise an empty list. Such partial results are not cached.
+     *
+     * @param query the search query string
+     * @param k the number of top results to return
+     * @param timeout deadline for the search, or null for none
+     * @param executor runs the search
+     * @return the future results
+     */
+    @Override
+    public CompletableFuture<List<RetrievedChunk>> searchAsync(String query, int k, Duration timeout,
+                                                               Executor executor) {
+        AsyncSearch search = new AsyncSearch();
+        CompletableFuture<Void> work = CompletableFuture.runAsync(() -> {
+            try {
+                List<List<RetrievedChunk>> results = searchAll(List.of(query), k, search);
+                if (results != null) {
+                    search.future.complete(results.get(0));
+                }
+            } catch (Throwable e) {
+                search.future.completeExceptionally(e);
+            }
+        }, executor);
+        ScheduledFuture<?> deadline = timeout == null ? null : AppExecutorUtil.getAppScheduledExecutorService()
+                .schedule(() -> {
+                    if (search.future.complete(search.best)) {
+                        LOG.info("Search deadline reached, returning " + search.best.size() + " partial results");
+                    }
+                }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        search.future.whenComplete((chunks, error) -> {
+            // Only stops work that has not started; a running search checks the future between steps
+            work.cancel(false);
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        });
+        return search.future;
+    }
+
+    /**
+     * Runs the searches of a batch against one index snapshot
+     *
+     * @param async the asynchronous search to report partial results to, or null
+     * @return the results in query order, or null if the asynchronous search completed meanwhile
+     */
+    private List<List<RetrievedChunk>> searchAll(List<String> queries, int k, AsyncSearch async) {
+        for (String query : queries) {
+            LOG.info("index query：" + query + "，return top-" + k);
+        }
+        List<List<RetrievedChunk>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        SimpleRagIndexer index = indexer.get();
+        if (index == null) {
+            LOG.info("Course materials not bound to an index yet");
+            Collections.fill(results, Collections.emptyList());
+            return results;
+        }
+        IndexSnapshot snapshot = index.acquireSnapshot();
+        try {
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++) {
+                List<RetrievedChunk> cached = queryCache.getResults(snapshot.getVersion(), queries.get(i), k);
+                if (cached != null) {
+                    LOG.info("Returning cached results of index version " + snapshot.getVersion());
+                    results.set(i, cached);
+                } else {
+                    pending.add(i);
+                }
+            }
+            if (pending.isEmpty()) {
+                return results;
+            }
+
+            // The keyword index runs ahead of the published snapshot while indexing
+            boolean cacheable = !index.isIndexing();
+            int candidates = Math.max(4 * k, 20);
+            List<List<LexicalIndex.Hit>> lexicalHits = new ArrayList<>();
+            List<List<EmbeddingMatch<TextSegment>>> matches = new ArrayList<>();
+            for (int i : pending) {
+                if (async != null && async.future.isDone()) {
+                    return null;
+                }
+                lexicalHits.add(index.getLexicalIndex().search(queries.get(i), candidates));
+                matches.add(new ArrayList<>());
+            }
+            if (async != null) {
+                async.best = fuse(matches.get(0), lexicalHits.get(0), k);
+            }
+
+            EmbeddingModelService modelService = EmbeddingModelService.getInstance();
+            PackedEmbeddingStore store = snapshot.getStore();
+            if (store.size() > 0 && !modelService.isReady()) {
+                LOG.info("Embedding model still loading, using keyword search only");
+                // Keyword-only results would outlive the model becoming ready
+                cacheable = false;
+            } else if (store.size() > 0) {
+                List<String> pendingQueries = new ArrayList<>();
+                for (int i : pending) {
+                    pendingQueries.add(queries.get(i));
+                }
+                List<Embedding> queryEmbeddings = embedQueries(pendingQueries, modelService, async);
+                if (queryEmbeddings == null) {
+                    return null;
+                }
+                // No score cutoff here, near misses still count when the keywords agree
+                List<EmbeddingSearchRequest> requests = new ArrayList<>();
+                for (Embedding queryEmbedding : queryEmbeddings) {
+                    requests.add(EmbeddingSearchRequest.builder()
+                            .queryEmbedding(queryEmbedding)
+                            .maxResults(candidates)
+                            .build());
+                }
+                matches = searchVectors(store, requests);
+            }
+            if (async != null && async.future.isDone()) {
+                return null;
+            }
+
+            for (int p = 0; p < pending.size(); p++) {
+                int i = pending.get(p);
+                List<RetrievedChunk> chunks = fuse(matches.get(p), lexicalHits.get(p), k);
+                if (cacheable) {
+                    queryCache.putResults(snapshot.getVersion(), queries.get(i), k, chunks);
+                }
+                results.set(i, chunks);
+            }
+            return results;
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Embeds the queries that are not in the cache with a single model call
+     *
+     * @return the embeddings in query order, or null if the asynchronous search completed meanwhile
+     */
+    private List<Embedding> embedQueries(List<String> queries, EmbeddingModelService modelService,
+                                         AsyncSearch async) {
+        List<Embedding> embeddings = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        List<Integer> missing = new ArrayList<>();
+        List<TextSegment> texts = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            Embedding cached = queryCache.getEmbedding(queries.get(i));
+            if (cached != null) {
+                embeddings.set(i, cached);
+            } else {
+                missing.add(i);
+                texts.add(TextSegment.from(queries.get(i)));
+            }
+        }
+        if (texts.isEmpty()) {
+            return embeddings;
+        }
+        if (async != null && async.future.isDone()) {
+            return null;
+        }
+        EmbeddingModel embeddingModel = modelService.getModel().join();
+        List<Embedding> computed = embeddingModel.embedAll(texts).content();
+        for (int m = 0; m < missing.size(); m++) {
+            int i = missing.get(m);
+            embeddings.set(i, computed.get(m));
+            queryCache.putEmbedding(queries.get(i), computed.get(m));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Merges the vector and keyword rankings with reciprocal rank fusion. Vector matches need the
+     * similarity threshold or a keyword hit on the same segment; keyword hits need to match more
+     * than {@code jedai.rag.keyword.minCoverage} of the query terms.
+     */
+    private static List<RetrievedChunk> fuse(List<EmbeddingMatch<TextSegment>> matches,
+                                             List<LexicalIndex.Hit> allLexicalHits, int k) {
+        List<LexicalIndex.Hit> lexicalHits = new ArrayList<>();
+        Set<String> lexicalIds = new HashSet<>();
+        for (LexicalIndex.Hit hit : allLexicalHits) {
+            if ((double) hit.getMatchedTerms() / hit.getQueryTerms() > MIN_KEYWORD_COVERAGE) {
+                lexicalHits.add(hit);
+                lexicalIds.add(hit.getId());
+            }
+        }
 
-        Embedding queryEmbedding = EMBEDDING_MODEL.embed(query).content();
+        Map<String, Double> fused = new LinkedHashMap<>();
+        Map<String, TextSegment> segments = new LinkedHashMap<>();
+        for (int rank = 0; rank < matches.size(); rank++) {
+            EmbeddingMatch<TextSegment> match = matches.get(rank);
+            if (match.score() < THRESHOLD && !lexicalIds.contains(match.embeddingId())) {
+                continue;
+            }
+            fused.merge(match.embeddingId(), 1.0 / (RRF_K + rank + 1), Double::sum);
+            segments.putIfAbsent(match.embeddingId(), match.embedded());
+        }
+        for (int rank = 0; rank < lexicalHits.size(); rank++) {
+            LexicalIndex.Hit hit = lexicalHits.get(rank);
+            fused.merge(hit.getId(), 1.0 / (RRF_K + rank + 1), Double::sum);
+            segments.putIfAbsent(hit.getId(), hit.getSegment());
+        }
 
-        List<EmbeddingMatch<TextSegment>> matches = EMBEDDING_STORE.findRelevant(queryEmbedding, k);
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(fused.entrySet());
+        ranked.sort(Map.Entry.<String, Double>comparingByValue().reversed());
 
         List<RetrievedChunk> chunks = new ArrayList<>();
-        double threshold = 0.80;
-        for (EmbeddingMatch<TextSegment> match : matches) {
-            if (match.score() < threshold) continue;
-            TextSegment segment = match.embedded();
+        for (Map.Entry<String, Double> entry : ranked.subList(0, Math.min(k, ranked.size()))) {
+            TextSegment segment = segments.get(entry.getKey());
             String content = segment.text();
             String sourceDoc = segment.metadata().getString("file_name");
             Integer page = segment.metadata().getInteger("page_number");
-            double score = match.score();
+            double score = entry.getValue();
 
             chunks.add(new RetrievedChunk(content, sourceDoc, page, score));
         }
 
         return chunks;
     }
-}
\ No newline at end of file
+
+    /**
+     * Hit and miss counters of the query embedding and result caches
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Picks exact or approximate vector search by corpus size. Exact searches of a batch share
+     * one pass over the vectors.
+     */
+    private static List<List<EmbeddingMatch<TextSegment>>> searchVectors(PackedEmbeddingStore store,
+                                                                         List<EmbeddingSearchRequest> requests) {
+        List<List<EmbeddingMatch<TextSegment>>> matches = new ArrayList<>(requests.size());
+        if (store.size() < ANN_MIN_CORPUS_SIZE) {
+            for (EmbeddingSearchResult<TextSegment> result : store.searchAll(requests)) {
+                matches.add(result.matches());
+            }
+            return matches;
+        }
+        for (EmbeddingSearchRequest request : requests) {
+            matches.add(searchApproximate(store, request));
+        }
+        return matches;
+    }
+
+    private static List<EmbeddingMatch<TextSegment>> searchApproximate(PackedEmbeddingStore store,
+                                                                       EmbeddingSearchRequest request) {
+        if ("binary".equals(ANN_STRATEGY)) {
+            int prefilter = Math.max(10 * request.maxResults(), (int) (store.size() * PREFILTER_FRACTION));
+            return store.searchPrefiltered(request, prefilter).matches();
+        }
+        if ("routed".equals(ANN_STRATEGY)) {
+            return store.searchRouted(request, ROUTE_DOCUMENTS, ROUTE_PAGES).matches();
+        }
+        return store.searchApproximate(request, EF_SEARCH).matches();
+    }
+
+    /**
+     * Reports which documents the search currently covers.
+     * Each document becomes searchable as soon as its embeddings are stored, so a search made
+     * during indexing may see only part of the course materials.
+     *
+     * @return the current coverage
+     */
+    @Override
+    public IndexCoverage getCoverage() {
+        SimpleRagIndexer index = indexer.get();
+        if (index == null) {
+            return new IndexCoverage(Set.of(), Set.of(), Set.of(), true);
+        }
+        return index.getCoverage();
+    }
+
+    /**
+     * State shared by an asynchronous search and its future
+     */
+    private static class AsyncSearch {
+        final CompletableFuture<List<RetrievedChunk>> future = new CompletableFuture<>();
+        volatile List<RetrievedChunk> best = Collections.emptyList();
+    }
+}
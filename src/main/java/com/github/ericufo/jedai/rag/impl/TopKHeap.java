@@ -0,0 +1,110 @@
+package com.github.ericufo.jedai.rag.impl;
+
+/**
+ * Bounded min-heap keeping the k best (slot, score) pairs.
+ * Backed by two primitive arrays, so offering candidates never allocates.
+ */
+public class TopKHeap {
+    private final int[] slots;
+    private final float[] scores;
+    private int size;
+
+    public TopKHeap(int k) {
+        this.slots = new int[Math.max(k, 1)];
+        this.scores = new float[Math.max(k, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return true if the heap is full and a candidate must beat {@link #minScore()} to get in
+     */
+    public boolean isFull() {
+        return size == slots.length;
+    }
+
+    public float minScore() {
+        return size == 0 ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offers a candidate, replacing the current worst one if the heap is full
+     */
+    public void offer(int slot, float score) {
+        if (size < slots.length) {
+            int i = size++;
+            slots[i] = slot;
+            scores[i] = score;
+            siftUp(i);
+        } else if (score > scores[0]) {
+            slots[0] = slot;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empties the heap into the given arrays, best score first
+     *
+     * @return the number of entries written
+     */
+    public int drainDescending(int[] outSlots, float[] outScores) {
+        int n = size;
+        for (int i = n - 1; i >= 0; i--) {
+            outSlots[i] = slots[0];
+            outScores[i] = scores[0];
+            size--;
+            if (size > 0) {
+                slots[0] = slots[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+        }
+        return n;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (scores[parent] <= scores[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < size && scores[right] < scores[left]) {
+                smallest = right;
+            }
+            if (scores[i] <= scores[smallest]) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slot = slots[a];
+        slots[a] = slots[b];
+        slots[b] = slot;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
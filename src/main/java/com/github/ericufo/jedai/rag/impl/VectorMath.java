@@ -0,0 +1,81 @@
+package com.github.ericufo.jedai.rag.impl;
+
+/**
+ * Dot product and normalization kernels used by the vector store.
+ * The loops are unrolled over four independent accumulators so the JIT can vectorize them.
+ */
+public final class VectorMath {
+
+    private VectorMath() {
+    }
+
+    /**
+     * Dot product of {@code length} floats starting at the given offsets
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0f;
+        float s1 = 0f;
+        float s2 = 0f;
+        float s3 = 0f;
+        int i = 0;
+        int upper = length & ~3;
+        for (; i < upper; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product of {@code length} signed bytes starting at the given offsets, for int8 codes
+     */
+    public static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int s0 = 0;
+        int s1 = 0;
+        int s2 = 0;
+        int s3 = 0;
+        int i = 0;
+        int upper = length & ~3;
+        for (; i < upper; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Scales a vector to unit length in place, so cosine similarity becomes a dot product
+     *
+     * @return the vector that was passed in
+     */
+    public static float[] normalize(float[] vector) {
+        normalize(vector, 0, vector.length);
+        return vector;
+    }
+
+    /**
+     * Scales {@code length} floats starting at {@code offset} to unit length in place
+     */
+    public static void normalize(float[] vectors, int offset, int length) {
+        double norm = 0;
+        for (int i = offset; i < offset + length; i++) {
+            norm += vectors[i] * vectors[i];
+        }
+        if (norm > 0) {
+            float inv = (float) (1.0 / Math.sqrt(norm));
+            for (int i = offset; i < offset + length; i++) {
+                vectors[i] *= inv;
+            }
+        }
+    }
+}
@@ -4,13 +4,14 @@ import com.github.ericufo.jedai.chat.Answer;
 import com.github.ericufo.jedai.chat.AnswerOrchestrator;
 import com.github.ericufo.jedai.chat.IdeContext;
 import com.github.ericufo.jedai.chat.impl.SimpleAnswerOrchestrator;
+import com.github.ericufo.jedai.rag.IndexCoverage;
 import com.github.ericufo.jedai.rag.RagRetriever;
 import com.github.ericufo.jedai.rag.RetrievedChunk;
 import com.github.ericufo.jedai.rag.impl.SimpleRagRetriever;
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.SimpleToolWindowPanel;
 import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.ui.JBUI;
 
 import javax.swing.*;
@@ -20,9 +21,13 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 聊天面板
@@ -33,7 +38,9 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
     private final Project project;
 
     // RAG 和 Chat 模块
-    private final RagRetriever ragRetriever = new SimpleRagRetriever();
+    private final RagRetriever ragRetriever;
+    // 检索的截止时间，超时后用已有的部分结果（如仅关键词检索）回答
+    private static final Duration SEARCH_TIMEOUT = Duration.ofSeconds(5);
     private final AnswerOrchestrator answerOrchestrator = new SimpleAnswerOrchestrator();
 
     // 主题和字体配置
@@ -57,6 +64,9 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
     private final StringBuilder streamingAnswerBuffer = new StringBuilder();
     private javax.swing.Timer streamingUpdateTimer;
 
+    // 本轮索引构建期间是否已提示过索引未完成，索引完成后重置
+    private final AtomicBoolean indexNoticeShown = new AtomicBoolean();
+
     /**
      * 聊天消息内部类
      */
@@ -97,6 +107,7 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
     public JedaiChatPanel(Project project) {
         super(false, true);
         this.project = project;
+        this.ragRetriever = new SimpleRagRetriever(project);
 
         setLayout(new BorderLayout());
 
@@ -422,11 +433,10 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
         // 构建IDE上下文（可以从当前编辑器获取）
         IdeContext ideContext = new IdeContext(project.getName());
 
-        // 真正的异步处理：在后台线程执行LLM调用
-        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+        // 真正的异步处理：检索完成（或到达截止时间）后在后台线程执行LLM调用
+        searchMaterials(question).thenAcceptAsync(retrievedChunks -> {
             try {
-                // 调用RAG检索（在后台线程）
-                List<RetrievedChunk> retrievedChunks = ragRetriever.search(question, 5);
+                notifyIfIndexIncomplete();
 
                 // 准备流式显示
                 SwingUtilities.invokeLater(() -> {
@@ -510,7 +520,7 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
                 });
                 e.printStackTrace();
             }
-        });
+        }, AppExecutorUtil.getAppExecutorService());
     }
 
     /**
@@ -723,6 +733,35 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
         }
     }
 
+    /**
+     * 异步检索课程材料，到达截止时间时使用目前为止最好的结果，检索出错时不使用课程材料
+     */
+    private CompletableFuture<List<RetrievedChunk>> searchMaterials(String question) {
+        return ragRetriever.searchAsync(question, 5, SEARCH_TIMEOUT, AppExecutorUtil.getAppExecutorService())
+                .exceptionally(error -> {
+                    error.printStackTrace();
+                    return Collections.emptyList();
+                });
+    }
+
+    /**
+     * 索引仍在构建时提示用户检索结果只覆盖部分课程材料（可在后台线程调用）
+     * 每轮索引构建只提示一次；提示反映的是临时状态，不保存到消息历史
+     */
+    private void notifyIfIndexIncomplete() {
+        IndexCoverage coverage = ragRetriever.getCoverage();
+        if (coverage.isComplete()) {
+            indexNoticeShown.set(false);
+            return;
+        }
+        if (!indexNoticeShown.compareAndSet(false, true)) {
+            return;
+        }
+        String message = "[提示] 课程材料索引仍在构建中（已完成 " + coverage.getIndexedDocuments().size()
+                + "/" + coverage.getTotalDocuments() + " 个文档），回答可能未覆盖全部材料。";
+        SwingUtilities.invokeLater(() -> appendSystemMessageDirect(message));
+    }
+
     /**
      * 添加系统消息（会保存到消息历史）
      */
@@ -810,11 +849,10 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
         // 禁用输入控件
         setInputEnabled(false);
 
-        // 真正的异步处理：在后台线程执行LLM调用
-        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+        // 真正的异步处理：检索完成（或到达截止时间）后在后台线程执行LLM调用
+        searchMaterials(question).thenAcceptAsync(retrievedChunks -> {
             try {
-                // 调用RAG检索（在后台线程）
-                List<RetrievedChunk> retrievedChunks = ragRetriever.search(question, 5);
+                notifyIfIndexIncomplete();
 
                 // 准备流式显示
                 SwingUtilities.invokeLater(() -> {
@@ -898,7 +936,7 @@ public class JedaiChatPanel extends SimpleToolWindowPanel {
                 });
                 e.printStackTrace();
             }
-        });
+        }, AppExecutorUtil.getAppExecutorService());
     }
 
     /**
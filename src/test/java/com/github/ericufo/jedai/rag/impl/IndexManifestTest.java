@@ -0,0 +1,152 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class IndexManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changesAreJournaledAndReplayed() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.put(entry("b"));
+        manifest.save(path);
+        String written = Files.readString(path);
+        assertFalse(Files.exists(IndexManifest.journalPath(path)));
+
+        IndexManifest loaded = IndexManifest.load(path);
+        loaded.remove("a");
+        loaded.put(entry("c"));
+        loaded.save(path);
+
+        assertEquals(written, Files.readString(path));
+        assertEquals(2, Files.readAllLines(IndexManifest.journalPath(path)).size());
+        assertEquals(List.of("b", "c"), paths(IndexManifest.load(path)));
+    }
+
+    @Test
+    public void unchangedManifestWritesNothing() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.save(path);
+
+        IndexManifest.load(path).save(path);
+
+        assertFalse(Files.exists(IndexManifest.journalPath(path)));
+    }
+
+    @Test
+    public void longJournalIsFoldedIntoFile() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.put(entry("b"));
+        manifest.save(path);
+
+        for (int version = 0; version < 20; version++) {
+            IndexManifest loaded = IndexManifest.load(path);
+            loaded.put(entry("b", "hash-" + version));
+            loaded.save(path);
+        }
+
+        // Folded after the 17th line, three lines appended since
+        assertEquals(3, Files.readAllLines(IndexManifest.journalPath(path)).size());
+        IndexManifest loaded = IndexManifest.load(path);
+        assertEquals(List.of("a", "b"), paths(loaded));
+        assertEquals("hash-19", loaded.get("b").getContentHash());
+    }
+
+    @Test
+    public void tornJournalLineIsIgnoredAndRewritten() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.save(path);
+        IndexManifest loaded = IndexManifest.load(path);
+        loaded.put(entry("b"));
+        loaded.save(path);
+        Files.writeString(IndexManifest.journalPath(path), "{\"path\":\"c\",\"ent", StandardOpenOption.APPEND);
+
+        IndexManifest replayed = IndexManifest.load(path);
+        assertEquals(List.of("a", "b"), paths(replayed));
+        replayed.save(path);
+
+        assertFalse(Files.exists(IndexManifest.journalPath(path)));
+        assertEquals(List.of("a", "b"), paths(IndexManifest.load(path)));
+    }
+
+    @Test
+    public void clearedManifestIsRewritten() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.save(path);
+        IndexManifest loaded = IndexManifest.load(path);
+        loaded.put(entry("b"));
+        loaded.save(path);
+
+        IndexManifest cleared = IndexManifest.load(path);
+        cleared.clear();
+        cleared.put(entry("c"));
+        cleared.save(path);
+
+        assertFalse(Files.exists(IndexManifest.journalPath(path)));
+        assertEquals(List.of("c"), paths(IndexManifest.load(path)));
+    }
+
+    @Test
+    public void bundleStampSurvivesJournalAndIsCleared() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("manifest.json");
+        IndexManifest manifest = new IndexManifest();
+        manifest.put(entry("a"));
+        manifest.save(path);
+        IndexManifest mounted = IndexManifest.load(path);
+        mounted.setBundleStamp("key:100:200");
+        mounted.save(path);
+        assertFalse(Files.exists(IndexManifest.journalPath(path)));
+
+        IndexManifest loaded = IndexManifest.load(path);
+        loaded.put(entry("b"));
+        loaded.save(path);
+        assertEquals("key:100:200", IndexManifest.load(path).getBundleStamp());
+
+        IndexManifest cleared = IndexManifest.load(path);
+        cleared.clear();
+        cleared.save(path);
+        assertNull(IndexManifest.load(path).getBundleStamp());
+    }
+
+    private static IndexManifest.DocumentEntry entry(String path) {
+        return entry(path, "hash-" + path);
+    }
+
+    private static IndexManifest.DocumentEntry entry(String path, String contentHash) {
+        return new IndexManifest.DocumentEntry(path, path + ".txt", contentHash, 500, 50, 1,
+                List.of(path + "#0", path + "#1"));
+    }
+
+    private static List<String> paths(IndexManifest manifest) {
+        List<String> paths = new ArrayList<>();
+        for (IndexManifest.DocumentEntry entry : manifest.getDocuments()) {
+            paths.add(entry.getPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.segment.TextSegment;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LexicalIndexTest {
+
+    @Test
+    public void tokenizeSplitsCamelCaseAndKeepsWholeIdentifier() {
+        assertEquals(List.of("getusername", "get", "user", "name"), LexicalIndex.tokenize("getUserName"));
+        assertEquals(List.of("httpclient", "http", "client"), LexicalIndex.tokenize("HTTPClient"));
+        assertEquals(List.of("max_size", "max", "size"), LexicalIndex.tokenize("MAX_SIZE"));
+    }
+
+    @Test
+    public void tokenizeKeepsAnnotationsAndNumbers() {
+        assertEquals(List.of("override", "@override"), LexicalIndex.tokenize("@Override"));
+        assertEquals(List.of("retry", "3", "times"), LexicalIndex.tokenize("retry 3 times"));
+    }
+
+    @Test
+    public void tokenizeDropsStopWordsButNotAnnotations() {
+        assertEquals(List.of("singleton", "pattern"), LexicalIndex.tokenize("What is the Singleton pattern?"));
+        assertEquals(List.of("for", "@for"), LexicalIndex.tokenize("@For"));
+    }
+
+    @Test
+    public void postingsDecodeLargeGapsAndFrequencies() {
+        LexicalIndex index = new LexicalIndex();
+        index.add("first", TextSegment.from(repeat("alpha", 200)));
+        for (int i = 0; i < 1000; i++) {
+            index.add("filler" + i, TextSegment.from("filler text " + i));
+        }
+        index.add("last", TextSegment.from("alpha beta"));
+
+        List<LexicalIndex.Hit> hits = index.search("alpha", 10);
+
+        assertEquals(2, hits.size());
+        assertEquals("first", hits.get(0).getId());
+        assertEquals("last", hits.get(1).getId());
+        // BM25 with tf = 200 on a 200 token document and tf = 1 on a 2 token one
+        float averageLength = (200 + 1000 * 3 + 2) / 1002f;
+        double idf = Math.log(1 + (1002 - 2 + 0.5) / (2 + 0.5));
+        assertEquals(bm25(idf, 200, 200, averageLength), hits.get(0).getScore(), 1e-4);
+        assertEquals(bm25(idf, 1, 2, averageLength), hits.get(1).getScore(), 1e-4);
+    }
+
+    @Test
+    public void hitsReportMatchedQueryTerms() {
+        LexicalIndex index = new LexicalIndex();
+        index.add("both", TextSegment.from("cache eviction policy"));
+        index.add("one", TextSegment.from("cache warmup"));
+
+        List<LexicalIndex.Hit> hits = index.search("the cache eviction", 10);
+
+        assertEquals(2, hits.size());
+        assertEquals("both", hits.get(0).getId());
+        assertEquals(2, hits.get(0).getMatchedTerms());
+        assertEquals(2, hits.get(0).getQueryTerms());
+        assertEquals("one", hits.get(1).getId());
+        assertEquals(1, hits.get(1).getMatchedTerms());
+    }
+
+    @Test
+    public void addReplacesSegmentWithSameId() {
+        LexicalIndex index = new LexicalIndex();
+        index.add("a", TextSegment.from("old content"));
+        index.add("a", TextSegment.from("new content"));
+
+        assertEquals(1, index.size());
+        assertTrue(index.search("old", 10).isEmpty());
+        assertEquals("a", index.search("new", 10).get(0).getId());
+    }
+
+    @Test
+    public void compactionKeepsRankingOfFreshIndex() {
+        LexicalIndex index = new LexicalIndex();
+        LexicalIndex fresh = new LexicalIndex();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            String id = "d" + i;
+            index.add(id, TextSegment.from(document(i)));
+            if (i % 3 == 0) {
+                fresh.add(id, TextSegment.from(document(i)));
+            } else {
+                removed.add(id);
+            }
+        }
+        // 400 of 600 documents tombstoned, enough to renumber the rest
+        index.removeAll(removed);
+
+        assertEquals(fresh.size(), index.size());
+        for (String query : List.of("common", "word3 shared", "topic5 word2", "unique42")) {
+            assertSameHits(fresh.search(query, 300), index.search(query, 300));
+        }
+    }
+
+    @Test
+    public void idsResolveToRenumberedDocumentsAfterCompaction() {
+        LexicalIndex index = new LexicalIndex();
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            index.add("d" + i, TextSegment.from(document(i)));
+            if (i < 400) {
+                removed.add("d" + i);
+            }
+        }
+        index.removeAll(removed);
+
+        index.remove("d599");
+        index.add("d500", TextSegment.from("rewritten chunk"));
+
+        assertEquals(199, index.size());
+        assertTrue(index.search("unique599", 10).isEmpty());
+        assertTrue(index.search("unique500", 10).isEmpty());
+        assertEquals("d500", index.search("rewritten", 10).get(0).getId());
+        assertEquals("d450", index.search("unique450", 10).get(0).getId());
+        assertFalse(index.search("common", 300).stream().anyMatch(hit -> removed.contains(hit.getId())));
+    }
+
+    private static String document(int i) {
+        return "common unique" + i + " word" + (i % 7) + " topic" + (i % 11) + (i % 2 == 0 ? " shared" : "");
+    }
+
+    private static String repeat(String word, int times) {
+        return String.join(" ", Collections.nCopies(times, word));
+    }
+
+    private static double bm25(double idf, int tf, int length, float averageLength) {
+        double norm = 1.2 * (1 - 0.75 + 0.75 * length / averageLength);
+        return idf * tf * 2.2 / (tf + norm);
+    }
+
+    private static void assertSameHits(List<LexicalIndex.Hit> expected, List<LexicalIndex.Hit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1e-5);
+            assertEquals(expected.get(i).getMatchedTerms(), actual.get(i).getMatchedTerms());
+        }
+        // equal scores may tie-break differently, so compare ids per score
+        assertEquals(idsByScore(expected), idsByScore(actual));
+    }
+
+    private static List<String> idsByScore(List<LexicalIndex.Hit> hits) {
+        List<String> keys = new ArrayList<>();
+        for (LexicalIndex.Hit hit : hits) {
+            keys.add(Math.round(hit.getScore() * 1e4) + ":" + hit.getId());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+}
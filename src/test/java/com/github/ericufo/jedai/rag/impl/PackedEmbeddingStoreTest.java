@@ -0,0 +1,174 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackedEmbeddingStoreTest {
+    private static final int DIMENSION = 32;
+    private static final HnswIndex.Params PARAMS = new HnswIndex.Params(8, 64, 64);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void graphIsWrittenOnlyOnceStale() throws IOException {
+        Path graphFile = folder.getRoot().toPath().resolve("graph.bin");
+        PackedEmbeddingStore store = new PackedEmbeddingStore();
+        store.enableGraph(PARAMS);
+        add(store, 0, 100);
+        assertTrue(store.writeGraphIfStale(graphFile));
+
+        add(store, 100, 105);
+        assertFalse(store.writeGraphIfStale(graphFile));
+
+        add(store, 105, 130);
+        assertTrue(store.writeGraphIfStale(graphFile));
+    }
+
+    @Test
+    public void staleGraphIsRepairedOnLoad() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path graphFile = directory.resolve("graph.bin");
+        PackedEmbeddingStore store = new PackedEmbeddingStore();
+        store.enableGraph(PARAMS);
+        add(store, 0, 300);
+        store.writeGraphIfStale(graphFile);
+
+        // Rows changed after the graph was saved: every 7th removed, 50 added in a second file
+        Path first = directory.resolve("first.bin");
+        Path second = directory.resolve("second.bin");
+        write(first, 0, 300);
+        write(second, 300, 350);
+        BitSet removedRows = new BitSet();
+        for (int row = 0; row < 300; row += 7) {
+            removedRows.set(row);
+        }
+        HnswIndex.Persisted persisted = HnswIndex.read(graphFile, PARAMS);
+        assertNotNull(persisted);
+
+        PackedEmbeddingStore loaded = new PackedEmbeddingStore();
+        loaded.enableGraph(PARAMS);
+        loaded.load(List.of(BinaryIndexFile.open(first), BinaryIndexFile.open(second)),
+                List.of(removedRows, new BitSet()), persisted);
+
+        assertEquals(350 - removedRows.cardinality(), loaded.size());
+        int found = 0;
+        int live = 0;
+        for (int i = 0; i < 350; i++) {
+            List<EmbeddingMatch<TextSegment>> matches = loaded.searchApproximate(EmbeddingSearchRequest.builder()
+                    .queryEmbedding(Embedding.from(vector(i)))
+                    .maxResults(1)
+                    .build(), PARAMS.efSearch).matches();
+            boolean removed = i < 300 && removedRows.get(i);
+            if (removed) {
+                String id = id(i);
+                assertFalse(matches.stream().anyMatch(match -> match.embeddingId().equals(id)));
+                continue;
+            }
+            live++;
+            if (!matches.isEmpty() && matches.get(0).embeddingId().equals(id(i))) {
+                found++;
+            }
+        }
+        assertTrue("recall " + found + "/" + live, found >= live * 0.95);
+    }
+
+    @Test
+    public void viewIsUnaffectedByLaterChanges() {
+        PackedEmbeddingStore store = new PackedEmbeddingStore();
+        store.enableGraph(PARAMS);
+        add(store, 0, 200);
+        PackedEmbeddingStore view = store.view();
+        List<List<String>> before = new ArrayList<>();
+        for (int i = 0; i < 200; i += 10) {
+            before.add(search(view, i));
+        }
+
+        add(store, 200, 400);
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < 200; i += 2) {
+            removed.add(id(i));
+        }
+        store.removeAll(removed);
+        store.compact();
+
+        assertEquals(200, view.size());
+        for (int i = 0; i < 200; i += 10) {
+            assertEquals(before.get(i / 10), search(view, i));
+        }
+        assertEquals(300, store.size());
+        assertEquals(id(201), search(store, 201).get(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void viewIsReadOnly() {
+        PackedEmbeddingStore store = new PackedEmbeddingStore();
+        add(store, 0, 10);
+        store.view().remove(id(0));
+    }
+
+    private static List<String> search(PackedEmbeddingStore store, int i) {
+        List<String> ids = new ArrayList<>();
+        for (EmbeddingMatch<TextSegment> match : store.searchApproximate(EmbeddingSearchRequest.builder()
+                .queryEmbedding(Embedding.from(vector(i)))
+                .maxResults(5)
+                .build(), PARAMS.efSearch).matches()) {
+            ids.add(match.embeddingId());
+        }
+        return ids;
+    }
+
+    private static void add(PackedEmbeddingStore store, int from, int to) {
+        List<String> ids = new ArrayList<>();
+        List<Embedding> embeddings = new ArrayList<>();
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(id(i));
+            embeddings.add(Embedding.from(vector(i)));
+            segments.add(TextSegment.from("row " + i));
+        }
+        store.addAll(ids, embeddings, segments);
+    }
+
+    private static void write(Path file, int from, int to) throws IOException {
+        List<String> ids = new ArrayList<>();
+        List<float[]> vectors = new ArrayList<>();
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(id(i));
+            vectors.add(vector(i));
+            segments.add(TextSegment.from("row " + i));
+        }
+        BinaryIndexFile.write(file, ids, vectors, segments, 1L);
+    }
+
+    private static String id(int i) {
+        return "id-" + i;
+    }
+
+    private static float[] vector(int i) {
+        Random random = new Random(i);
+        float[] vector = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            vector[d] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+}
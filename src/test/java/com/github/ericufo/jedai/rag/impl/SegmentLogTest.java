@@ -0,0 +1,156 @@
+package com.github.ericufo.jedai.rag.impl;
+
+import dev.langchain4j.data.segment.TextSegment;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentLogTest {
+    // int length, int crc32, byte type, long generation
+    private static final int COMMIT_RECORD_SIZE = 2 * Integer.BYTES + 1 + Long.BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void committedBatchesSurviveReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SegmentLog log = SegmentLog.open(directory);
+        log.commit(List.of(), rows("a", "b"));
+        log.commit(List.of("a"), rows("c"));
+        long generation = log.getGeneration();
+
+        SegmentLog reopened = SegmentLog.open(directory);
+
+        assertTrue(reopened.exists());
+        assertEquals(2, reopened.size());
+        assertEquals(2, reopened.segmentCount());
+        assertEquals(generation, reopened.getGeneration());
+        assertEquals(List.of("b", "c"), liveIds(reopened));
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path logFile = directory.resolve(SegmentLog.LOG_FILE_NAME);
+        SegmentLog log = SegmentLog.open(directory);
+        log.commit(List.of(), rows("a", "b"));
+        long committed = Files.size(logFile);
+        long generation = log.getGeneration();
+        log.commit(List.of("a"), rows("c"));
+        // A crash in the middle of the second batch
+        truncate(logFile, Files.size(logFile) - 5);
+
+        SegmentLog reopened = SegmentLog.open(directory);
+
+        assertEquals(committed, Files.size(logFile));
+        assertEquals(generation, reopened.getGeneration());
+        assertEquals(List.of("a", "b"), liveIds(reopened));
+        assertEquals(1, segmentFiles(directory));
+    }
+
+    @Test
+    public void corruptedRecordEndsTheLog() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path logFile = directory.resolve(SegmentLog.LOG_FILE_NAME);
+        SegmentLog log = SegmentLog.open(directory);
+        log.commit(List.of(), rows("a"));
+        long committed = Files.size(logFile);
+        log.commit(List.of(), rows("b"));
+        byte[] bytes = Files.readAllBytes(logFile);
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(logFile, bytes);
+
+        SegmentLog reopened = SegmentLog.open(directory);
+
+        assertEquals(committed, Files.size(logFile));
+        assertEquals(List.of("a"), liveIds(reopened));
+    }
+
+    @Test
+    public void batchWithoutCommitIsRolledBack() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path logFile = directory.resolve(SegmentLog.LOG_FILE_NAME);
+        SegmentLog log = SegmentLog.open(directory);
+        log.commit(List.of(), rows("a", "b"));
+        log.commit(List.of("a"), rows("c"));
+        // The add and delete records are intact, only the commit record is missing
+        truncate(logFile, Files.size(logFile) - COMMIT_RECORD_SIZE);
+
+        SegmentLog reopened = SegmentLog.open(directory);
+
+        assertEquals(List.of("a", "b"), liveIds(reopened));
+        assertEquals(1, segmentFiles(directory));
+        // The next batch is appended after the last commit
+        reopened.commit(List.of("b"), rows("d"));
+        assertEquals(List.of("a", "d"), liveIds(SegmentLog.open(directory)));
+    }
+
+    @Test
+    public void legacyIndexIsAdoptedAsFirstSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path legacy = directory.resolve(SegmentLog.LEGACY_INDEX_FILE_NAME);
+        PackedEmbeddingStore.Snapshot rows = rows("a", "b", "c");
+        BinaryIndexFile.write(legacy, rows.ids, rows.vectors, rows.segments, 42L);
+
+        SegmentLog log = SegmentLog.open(directory);
+
+        assertFalse(Files.exists(legacy));
+        assertTrue(Files.exists(directory.resolve(SegmentLog.LOG_FILE_NAME)));
+        assertEquals(42L, log.getGeneration());
+        assertEquals(List.of("a", "b", "c"), liveIds(log));
+
+        SegmentLog reopened = SegmentLog.open(directory);
+        assertEquals(42L, reopened.getGeneration());
+        assertEquals(List.of("a", "b", "c"), liveIds(reopened));
+    }
+
+    private static PackedEmbeddingStore.Snapshot rows(String... ids) {
+        List<String> idList = new ArrayList<>();
+        List<float[]> vectors = new ArrayList<>();
+        List<TextSegment> segments = new ArrayList<>();
+        for (String id : ids) {
+            idList.add(id);
+            vectors.add(new float[]{id.charAt(0), 1f, 0f, 0f});
+            segments.add(TextSegment.from("segment " + id));
+        }
+        return new PackedEmbeddingStore.Snapshot(idList, vectors, segments);
+    }
+
+    private static List<String> liveIds(SegmentLog log) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (SegmentLog.Segment segment : log.openSegments()) {
+            for (int row = 0; row < segment.file.size(); row++) {
+                if (!segment.removed.get(row)) {
+                    ids.add(segment.file.id(row));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static long segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve(SegmentLog.SEGMENT_DIR_NAME))) {
+            return files.count();
+        }
+    }
+
+    private static void truncate(Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+}